@@ -0,0 +1,343 @@
+package com.bfo.zeroconf;
+
+import java.lang.reflect.Method;
+import java.net.NetworkInterface;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>
+ * A {@link ZeroconfListener} which queues the events it receives and passes them to
+ * another listener using an {@link Executor}, so a listener that is slow or blocks
+ * doesn't hold up the {@link Zeroconf} object reading from the network. Events are
+ * delivered to the wrapped listener in order, one at a time.
+ * </p><p>
+ * The queue has a fixed capacity, and what happens when it's full is determined by
+ * the {@link Overflow} policy.
+ * </p>
+ * <pre>
+ * zc.addListener(new AsyncZeroconfListener(listener, executor, 1000, AsyncZeroconfListener.Overflow.COALESCE));
+ * </pre>
+ */
+public class AsyncZeroconfListener implements ZeroconfListener {
+
+    /**
+     * What to do when an event is received and the queue is full
+     */
+    public enum Overflow {
+        /** Discard the oldest queued event */
+        DROP_OLDEST,
+        /**
+         * Replace a queued event of the same type for the same Service, type or name if
+         * there is one, otherwise discard the oldest queued event.
+         */
+        COALESCE,
+        /**
+         * Block the Zeroconf thread until there is space in the queue.
+         * This will delay all network processing.
+         */
+        BLOCK
+    }
+
+    private static final int PACKET_SENT = 0, PACKET_RECEIVED = 1, PACKET_ERROR = 2, TOPOLOGY_CHANGE = 3, TYPE_NAMED = 4, TYPE_NAME_EXPIRED = 5, SERVICE_NAMED = 6, SERVICE_NAME_EXPIRED = 7, SERVICE_ANNOUNCED = 8, SERVICE_MODIFIED = 9, SERVICE_EXPIRED = 10;
+
+    private static final Method VIRTUAL;
+    static {
+        Method m = null;
+        try {
+            m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (Exception e) {
+            // Java 20 or earlier
+        }
+        VIRTUAL = m;
+    }
+    private static Executor sharedExecutor;
+
+    private final ZeroconfListener listener;
+    private final Executor executor;
+    private final int capacity;
+    private final Overflow overflow;
+    private final ArrayDeque<Event> queue;
+    private final Runnable drain;
+    private boolean running;
+    private long dropped;
+
+    /**
+     * Create a new AsyncZeroconfListener which delivers events on a thread of its own from a shared
+     * pool (a virtual thread when running on Java 21 or later), queueing up to 1024 events and dropping the oldest when full.
+     * @param listener the listener to pass events to
+     */
+    public AsyncZeroconfListener(ZeroconfListener listener) {
+        this(listener, null, 1024, Overflow.DROP_OLDEST);
+    }
+
+    /**
+     * Create a new AsyncZeroconfListener
+     * @param listener the listener to pass events to
+     * @param executor the Executor to deliver events with, or null to use a thread of its own which exits when idle,
+     * from a pool shared by all AsyncZeroconfListeners. On Java 21 or later this is a virtual thread, so any number
+     * of listeners can be created cheaply
+     * @param capacity the maximum number of events to queue
+     * @param overflow what to do when the queue is full
+     */
+    public AsyncZeroconfListener(ZeroconfListener listener, Executor executor, int capacity, Overflow overflow) {
+        if (listener == null) {
+            throw new NullPointerException("Listener is null");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        if (overflow == null) {
+            throw new NullPointerException("Overflow is null");
+        }
+        if (executor == null) {
+            executor = getSharedExecutor();
+        }
+        this.listener = listener;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.queue = new ArrayDeque<Event>();
+        this.drain = new Runnable() {
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    /**
+     * Return true if this JVM supports virtual threads, which will be used
+     * to deliver events if no Executor is specified.
+     * @return true if virtual threads are available
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL != null;
+    }
+
+    /**
+     * Return the Executor to use when none is supplied, which is created once and shared
+     * so that adding and removing listeners doesn't leave Executors behind. Each drain task
+     * runs to completion before the next is scheduled for that listener, so a thread-per-task
+     * Executor still delivers events in order, and a slow listener doesn't hold up the others.
+     * Without virtual threads, it's a pool of daemon threads which exit after 30s idle.
+     * The library is compiled for Java 8 so the Java 21 API is found by reflection.
+     */
+    private static synchronized Executor getSharedExecutor() {
+        if (sharedExecutor == null) {
+            if (VIRTUAL != null) {
+                try {
+                    sharedExecutor = (Executor)VIRTUAL.invoke(null);
+                } catch (Exception e) {
+                    // fall through
+                }
+            }
+            if (sharedExecutor == null) {
+                sharedExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "AsyncZeroconfListener");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * Return the listener events are passed to
+     * @return the listener
+     */
+    public ZeroconfListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Return the number of events currently queued
+     * @return the queue size
+     */
+    public int getQueueSize() {
+        synchronized(queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Return how far behind the listener is: the number of milliseconds
+     * since the oldest queued event was received, or 0 if the queue is empty
+     * @return the lag in milliseconds
+     */
+    public long getLag() {
+        synchronized(queue) {
+            Event e = queue.peekFirst();
+            return e == null ? 0 : (System.nanoTime() - e.time) / 1000000;
+        }
+    }
+
+    /**
+     * Return the number of events that have been discarded because the queue was full
+     * @return the number of dropped events
+     */
+    public long getDropped() {
+        synchronized(queue) {
+            return dropped;
+        }
+    }
+
+    private void post(int type, Object a, Object b) {
+        Event e = new Event(type, a, b, System.nanoTime());
+        synchronized(queue) {
+            if (queue.size() >= capacity) {
+                if (overflow == Overflow.BLOCK) {
+                    try {
+                        while (queue.size() >= capacity) {
+                            queue.wait();
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        dropped++;
+                        return;
+                    }
+                } else {
+                    boolean removed = false;
+                    if (overflow == Overflow.COALESCE) {
+                        for (Iterator<Event> i = queue.iterator();i.hasNext();) {
+                            if (i.next().isSame(e)) {
+                                i.remove();
+                                removed = true;
+                                break;
+                            }
+                        }
+                    }
+                    if (!removed) {
+                        queue.pollFirst();
+                    }
+                    dropped++;
+                }
+            }
+            queue.addLast(e);
+            if (!running) {
+                running = true;
+                try {
+                    executor.execute(drain);
+                } catch (RuntimeException ex) {
+                    running = false;
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Event e;
+            synchronized(queue) {
+                e = queue.pollFirst();
+                if (e == null) {
+                    running = false;
+                    return;
+                }
+                queue.notifyAll();
+            }
+            try {
+                e.dispatch(listener);
+            } catch (Exception ex) {
+                Zeroconf.log("Listener exception", ex);
+            }
+        }
+    }
+
+    @Override public void packetSent(Packet packet) {
+        post(PACKET_SENT, packet, null);
+    }
+
+    @Override public void packetReceived(Packet packet) {
+        post(PACKET_RECEIVED, packet, null);
+    }
+
+    @Override public void packetError(Packet packet, String message) {
+        post(PACKET_ERROR, packet, message);
+    }
+
+    @Override public void topologyChange(NetworkInterface nic) {
+        post(TOPOLOGY_CHANGE, nic, null);
+    }
+
+    @Override public void typeNamed(String type) {
+        post(TYPE_NAMED, type, null);
+    }
+
+    @Override public void typeNameExpired(String type) {
+        post(TYPE_NAME_EXPIRED, type, null);
+    }
+
+    @Override public void serviceNamed(String type, String name) {
+        post(SERVICE_NAMED, type, name);
+    }
+
+    @Override public void serviceNameExpired(String type, String name) {
+        post(SERVICE_NAME_EXPIRED, type, name);
+    }
+
+    @Override public void serviceAnnounced(Service service) {
+        post(SERVICE_ANNOUNCED, service, null);
+    }
+
+    @Override public void serviceModified(Service service) {
+        post(SERVICE_MODIFIED, service, null);
+    }
+
+    @Override public void serviceExpired(Service service) {
+        post(SERVICE_EXPIRED, service, null);
+    }
+
+    public int hashCode() {
+        return listener.hashCode();
+    }
+
+    /**
+     * Two AsyncZeroconfListeners are equal if they wrap the same listener
+     * @param o the object
+     * @return true if the listeners are equal
+     */
+    public boolean equals(Object o) {
+        return o instanceof AsyncZeroconfListener && ((AsyncZeroconfListener)o).listener.equals(listener);
+    }
+
+    private static class Event {
+        final int type;
+        final Object a, b;
+        final long time;
+
+        Event(int type, Object a, Object b, long time) {
+            this.type = type;
+            this.a = a;
+            this.b = b;
+            this.time = time;
+        }
+
+        /**
+         * Return true if this event can be replaced by the other one
+         */
+        boolean isSame(Event e) {
+            return e.type == type && Objects.equals(e.a, a) && Objects.equals(e.b, b);
+        }
+
+        void dispatch(ZeroconfListener listener) {
+            switch (type) {
+                case PACKET_SENT:           listener.packetSent((Packet)a); break;
+                case PACKET_RECEIVED:       listener.packetReceived((Packet)a); break;
+                case PACKET_ERROR:          listener.packetError((Packet)a, (String)b); break;
+                case TOPOLOGY_CHANGE:       listener.topologyChange((NetworkInterface)a); break;
+                case TYPE_NAMED:            listener.typeNamed((String)a); break;
+                case TYPE_NAME_EXPIRED:     listener.typeNameExpired((String)a); break;
+                case SERVICE_NAMED:         listener.serviceNamed((String)a, (String)b); break;
+                case SERVICE_NAME_EXPIRED:  listener.serviceNameExpired((String)a, (String)b); break;
+                case SERVICE_ANNOUNCED:     listener.serviceAnnounced((Service)a); break;
+                case SERVICE_MODIFIED:      listener.serviceModified((Service)a); break;
+                case SERVICE_EXPIRED:       listener.serviceExpired((Service)a); break;
+            }
+        }
+    }
+
+}
@@ -13,15 +13,21 @@ public class Packet {
     private final int flags;
     private final List<Record> questions, answers, authorities, additionals;
     private final NetworkInterface nic;
+    private final InetSocketAddress address;
+    private final Map<NetworkInterface,Packet> applied;       // If not null, cache of appliedTo() and write() results
+    private volatile byte[] encoded;
 
     private static final int FLAG_RESPONSE = 15;
     private static final int FLAG_AA       = 10;
+    private static final int FLAG_TC       = 9;
 
 
-    private Packet(int id, int flags, NetworkInterface nic, List<Record> questions, List<Record> answers, List<Record> authorities, List<Record> additionals)  {
+    private Packet(int id, int flags, NetworkInterface nic, List<Record> questions, List<Record> answers, List<Record> authorities, List<Record> additionals, boolean cache)  {
         this.id = id;
         this.flags = flags;
         this.nic = nic;
+        this.address = null;
+        this.applied = cache ? new HashMap<NetworkInterface,Packet>() : null;
         this.questions = Collections.<Record>unmodifiableList(questions);
         this.answers = Collections.<Record>unmodifiableList(answers);
         this.authorities = Collections.<Record>unmodifiableList(authorities);
@@ -37,16 +43,46 @@ public class Packet {
         this.id = 0;
         this.flags = 0;
         if (question.getType() == Record.TYPE_A) {
-            Record aaaa = Record.newQuestion(Record.TYPE_AAAA, question.getName());
+            Record aaaa = Record.newQuestion(Record.TYPE_AAAA, question.getName(), question.isUnicast());
             this.questions = Collections.<Record>unmodifiableList(Arrays.asList(question, aaaa));
         } else if (question.getType() == Record.TYPE_AAAA) {
-            Record a = Record.newQuestion(Record.TYPE_A, question.getName());
+            Record a = Record.newQuestion(Record.TYPE_A, question.getName(), question.isUnicast());
             this.questions = Collections.<Record>unmodifiableList(Arrays.asList(a, question));
         } else {
             this.questions = Collections.<Record>singletonList(question);
         }
         this.answers = this.additionals = this.authorities = Collections.<Record>emptyList();
         this.nic = null;
+        this.address = null;
+        this.applied = null;
+    }
+
+    /**
+     * Create a question packet with multiple questions and a list of known answers,
+     * as described in RFC 6762 section 7.1
+     * @param questions the question records
+     * @param answers the known answers, which may be empty
+     */
+    Packet(List<Record> questions, List<Record> answers) {
+        this(0, questions, answers);
+    }
+
+    /**
+     * Create a question packet with a specific ID, which is only needed for legacy
+     * unicast queries (RFC 6762 section 6.7)
+     * @param id the packet ID
+     * @param questions the question records
+     * @param answers the known answers, which may be empty
+     */
+    Packet(int id, List<Record> questions, List<Record> answers) {
+        this.id = id;
+        this.flags = 0;
+        this.questions = Collections.<Record>unmodifiableList(questions);
+        this.answers = Collections.<Record>unmodifiableList(answers);
+        this.additionals = this.authorities = Collections.<Record>emptyList();
+        this.nic = null;
+        this.address = null;
+        this.applied = null;
     }
 
     /**
@@ -56,6 +92,18 @@ public class Packet {
      * @param additionals the additionals records
      */
     Packet(Packet question, List<Record> answers, List<Record> additionals) {
+        this(question, answers, additionals, false);
+    }
+
+    /**
+     * Create a response packet
+     * @param question the packet we're responding to
+     * @param answers the answer records
+     * @param additionals the additionals records
+     * @param unicast if true, the response is sent only to the address the question came from.
+     * If that isn't the mDNS port, it's a legacy unicast response and repeats the questions.
+     */
+    Packet(Packet question, List<Record> answers, List<Record> additionals, boolean unicast) {
         this.id = question.id;
         this.nic = question.nic;
         if (additionals == null) {
@@ -63,12 +111,17 @@ public class Packet {
         }
         this.answers = answers;
         this.additionals = additionals;
-        this.questions = this.authorities = Collections.<Record>emptyList();
+        this.questions = unicast && question.isLegacy() ? question.questions : Collections.<Record>emptyList();
+        this.authorities = Collections.<Record>emptyList();
         this.flags = (1<<FLAG_RESPONSE) | (1<<FLAG_AA);
+        this.address = unicast ? question.address : null;
+        this.applied = null;
     }
 
     /**
-     * Create an announcement packet
+     * Create an announcement packet. As these are sent repeatedly, the results of
+     * {@link #appliedTo} and {@link #write} are cached, so the Packet must be replaced
+     * when the service or network topology changes.
      * @param service the service we're announcing
      */
     Packet(Service service) {
@@ -90,6 +143,8 @@ public class Packet {
         this.additionals = Collections.<Record>unmodifiableList(additionals);
         this.questions = this.authorities = Collections.<Record>emptyList();
         this.nic = null;
+        this.address = null;
+        this.applied = new HashMap<NetworkInterface,Packet>();
     }
 
     /**
@@ -98,6 +153,28 @@ public class Packet {
      * @param address the address we read from
      */
     Packet(ByteBuffer in, NetworkInterface nic) {
+        this(in, nic, null, false);
+    }
+
+    /**
+     * Create a packet from an incoming datagram.
+     * If lazy is true, the datagram is copied and the records only indexed: their names and data
+     * are read from the copy when first accessed, so records that are never looked at cost very little.
+     * The copy is required because the buffer is reused for the next datagram, while the packet may
+     * be kept, for example by a listener or while waiting for the rest of a truncated query.
+     * @param in the incoming packet
+     * @param nic the NetworkInterface we read from
+     * @param address the address the packet was sent from, or null if not known
+     * @param lazy whether to index the records rather than read them
+     */
+    Packet(ByteBuffer in, NetworkInterface nic, InetSocketAddress address, boolean lazy) {
+        this.applied = null;
+        this.address = address;
+        if (lazy) {
+            byte[] b = new byte[in.remaining()];
+            in.get(b);
+            in = ByteBuffer.wrap(b);
+        }
         try {
             this.nic = nic;
             this.id = in.getShort() & 0xFFFF;
@@ -109,7 +186,7 @@ public class Packet {
             if (numQuestions > 0) {
                 List<Record> questions = new ArrayList<Record>(numQuestions);
                 for (int i=0;i<numQuestions;i++) {
-                    questions.add(Record.readQuestion(in));
+                    questions.add(lazy ? Record.indexQuestion(in) : Record.readQuestion(in));
                 }
                 this.questions = Collections.<Record>unmodifiableList(questions);
             } else {
@@ -119,7 +196,7 @@ public class Packet {
                 List<Record> answers = new ArrayList<Record>(numAnswers);
                 for (int i=0;i<numAnswers;i++) {
                     if (in.hasRemaining()) {
-                        answers.add(Record.readAnswer(in));
+                        answers.add(lazy ? Record.indexAnswer(in) : Record.readAnswer(in));
                     }
                 }
                 this.answers = Collections.<Record>unmodifiableList(answers);
@@ -130,7 +207,7 @@ public class Packet {
                 List<Record> authorities = new ArrayList<Record>(numAuthorities);
                 for (int i=0;i<numAuthorities;i++) {
                     if (in.hasRemaining()) {
-                        authorities.add(Record.readAnswer(in));
+                        authorities.add(lazy ? Record.indexAnswer(in) : Record.readAnswer(in));
                     }
                 }
                 this.authorities = Collections.<Record>unmodifiableList(authorities);
@@ -141,7 +218,7 @@ public class Packet {
                 List<Record> additionals = new ArrayList<Record>(numAdditionals);
                 for (int i=0;i<numAdditionals;i++) {
                     if (in.hasRemaining()) {
-                        additionals.add(Record.readAnswer(in));
+                        additionals.add(lazy ? Record.indexAnswer(in) : Record.readAnswer(in));
                     }
                 }
                 this.additionals = Collections.<Record>unmodifiableList(additionals);
@@ -161,6 +238,14 @@ public class Packet {
         return nic;
     }
 
+    /**
+     * The address the packet was sent from, or for a unicast response the
+     * address it is to be sent to. Otherwise null
+     */
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
     /**
      * The ID of the packet
      */
@@ -176,30 +261,72 @@ public class Packet {
     }
 
     /**
-     * Return true if the specified address matches one of the local addresses
-     * of the Network Interface.
+     * Return true if this was received from a port other than the mDNS port, which
+     * means it's from a simple resolver expecting a legacy unicast response (RFC 6762 section 6.7)
      */
-    private static boolean appliesTo(InetAddress address, NetworkInterface nic) {
-        for (InterfaceAddress ia : nic.getInterfaceAddresses()) {
-            byte[] a0 = ia.getAddress().getAddress();
-            byte[] a1 = address.getAddress();
-            if (a0.length == a1.length) {
-                byte[] mask = new byte[a0.length];
-                for (int i=0;i<ia.getNetworkPrefixLength();i++) {
-                    mask[i>>3] |= (byte)(1<<(7-(i&7)));
-                }
-                for (int i=0;i<mask.length;i++) {
-                    if ((a0[i]&mask[i]) != (a1[i]&mask[i])) {
-                        return false;
-                    }
+    boolean isLegacy() {
+        return address != null && address.getPort() != Zeroconf.PORT;
+    }
+
+    /**
+     * Return true if the TC bit is set: for a query, this means more known answers
+     * follow in another packet, as described in RFC 6762 section 7.2
+     */
+    boolean isTruncated() {
+        return (flags & (1<<FLAG_TC)) != 0;
+    }
+
+    /**
+     * Return a copy of this query with the known answers from a following packet added,
+     * and the TC bit taken from that packet.
+     * @param more the packet following this one, which has the TC bit set
+     */
+    Packet append(Packet more) {
+        List<Record> answers = new ArrayList<Record>(this.answers.size() + more.answers.size());
+        answers.addAll(this.answers);
+        answers.addAll(more.answers);
+        int flags = (this.flags & ~(1<<FLAG_TC)) | (more.flags & (1<<FLAG_TC));
+        return new Packet(id, flags, nic, questions, answers, authorities, additionals, false);
+    }
+
+    /**
+     * Split this packet into several so that each one is no larger than the specified
+     * size when encoded, unless a single record is too big on its own. For a query, the
+     * questions go first and the known answers follow, with the TC bit set on every packet
+     * that is followed by more known answers, as described in RFC 6762 section 7.2.
+     * For a response the answers and additionals are spread across as many packets as needed.
+     * @param size the maximum size of each encoded packet in bytes
+     * @return the list of packets
+     */
+    List<Packet> split(int size) {
+        List<Packet> out = new ArrayList<Packet>();
+        List<List<Record>> sections = Arrays.asList(questions, answers, authorities, additionals);
+        List<List<Record>> cur = Arrays.asList(new ArrayList<Record>(), new ArrayList<Record>(), new ArrayList<Record>(), new ArrayList<Record>());
+        Map<String,Integer> names = new HashMap<String,Integer>();
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        ((Buffer)buf).position(12);     // header
+        int count = 0;
+        for (int i=0;i<sections.size();i++) {
+            for (Record r : sections.get(i)) {
+                r.write(buf, 0, names);
+                if (buf.position() > size && count > 0) {
+                    // Doesn't fit; finish this packet and start the next with this record
+                    boolean more = i == 1 && !isResponse();
+                    out.add(new Packet(id, more ? flags | (1<<FLAG_TC) : flags, nic, cur.get(0), cur.get(1), cur.get(2), cur.get(3), false));
+                    cur = Arrays.asList(new ArrayList<Record>(), new ArrayList<Record>(), new ArrayList<Record>(), new ArrayList<Record>());
+                    names.clear();
+                    count = 0;
+                    ((Buffer)buf).position(12);
+                    r.write(buf, 0, names);
                 }
-                return true;
+                cur.get(i).add(r);
+                count++;
             }
         }
-        return false;
+        out.add(new Packet(id, flags, nic, cur.get(0), cur.get(1), cur.get(2), cur.get(3), false));
+        return out;
     }
 
-
     /**
      * Does a record apply to a specific NIC?
      * We are not choosing the best NIC, only if it's a possibility. A record applies if:
@@ -208,66 +335,141 @@ public class Packet {
      *  -- it doesn't match ANY local addresses - in that case, send it to all NICs
      * @param record the record network interface
      * @param nic the current network interface
-     * @param nics all the network interfaces being considered
+     * @param subnets the subnets of all the network interfaces being considered
      */
-    private static boolean appliesTo(Record r, NetworkInterface nic, Collection<NetworkInterface> nics) {
+    private static boolean appliesTo(Record r, NetworkInterface nic, SubnetMatcher subnets) {
         InetAddress address = r.getAddress();
-        if (address == null) {
-            return true;
-        }
-        if (appliesTo(address, nic)) {
-            return true;
-        }
-        for (NetworkInterface onic : nics) {
-            if (onic != nic && appliesTo(address, onic)) {
-                return false;
-            }
-        }
-        return true;
+        return address == null || subnets.appliesTo(address, nic);
     }
 
     /**
-     * Return a clone of this Packet but excluding any A or AAAA records in the list of addresses.
-     * @param excludedAddresses the addresses to exclude
+     * Return a clone of this Packet but excluding any A or AAAA records that don't apply to the NIC.
+     * @param nic the network interface the packet is to be sent on
+     * @param subnets the subnets of all the network interfaces being considered
      * @return a new Packet, or null if all records were excluded
      */
-    Packet appliedTo(NetworkInterface nic, Collection<NetworkInterface> nics) {
+    Packet appliedTo(NetworkInterface nic, SubnetMatcher subnets) {
+        if (applied != null) {
+            synchronized(applied) {
+                Packet p = applied.get(nic);
+                if (p == null && !applied.containsKey(nic)) {
+                    p = appliedTo0(nic, subnets);
+                    applied.put(nic, p);
+                }
+                return p;
+            }
+        }
+        return appliedTo0(nic, subnets);
+    }
+
+    private Packet appliedTo0(NetworkInterface nic, SubnetMatcher subnets) {
         List<Record> questions = this.questions.isEmpty() ? this.questions : new ArrayList<Record>(this.questions);
         List<Record> answers = this.answers.isEmpty() ? this.answers : new ArrayList<Record>(this.answers);
         List<Record> additionals = this.additionals.isEmpty() ? this.additionals : new ArrayList<Record>(this.additionals);
         List<Record> authorities = this.authorities.isEmpty() ? this.authorities : new ArrayList<Record>(this.authorities);
         for (int i=0;i<questions.size();i++) {
-            if (!appliesTo(questions.get(i), nic, nics)) {
+            if (!appliesTo(questions.get(i), nic, subnets)) {
                 questions.remove(i--);
             }
         }
         for (int i=0;i<answers.size();i++) {
-            if (!appliesTo(answers.get(i), nic, nics)) {
+            if (!appliesTo(answers.get(i), nic, subnets)) {
                 answers.remove(i--);
             }
         }
         for (int i=0;i<additionals.size();i++) {
-            if (!appliesTo(additionals.get(i), nic, nics)) {
+            if (!appliesTo(additionals.get(i), nic, subnets)) {
                 additionals.remove(i--);
             }
         }
         for (int i=0;i<authorities.size();i++) {
-            if (!appliesTo(authorities.get(i), nic, nics)) {
+            if (!appliesTo(authorities.get(i), nic, subnets)) {
                 authorities.remove(i--);
             }
         }
         if (questions.isEmpty() && answers.isEmpty() && authorities.isEmpty() && additionals.isEmpty()) {
             return null;
         }
-        Packet p = new Packet(id, flags, nic, questions, answers, authorities, additionals);
+        Packet p = new Packet(id, flags, nic, questions, answers, authorities, additionals, applied != null);
         return p;
     }
 
+    /**
+     * Combine the answers and additionals of a list of announcement or goodbye packets into
+     * as few packets as possible, each no larger than the specified size when encoded
+     * (unless a single packet is larger to start with). Additionals repeated across
+     * packets, such as the addresses of a host shared by several services, are only included once.
+     * @param packets the packets to combine
+     * @param size the maximum size of each encoded packet in bytes
+     * @return the combined packets
+     */
+    static List<Packet> pack(Collection<Packet> packets, int size) {
+        List<Packet> out = new ArrayList<Packet>();
+        List<Record> answers = new ArrayList<Record>();
+        List<Record> additionals = new ArrayList<Record>();
+        final int flags = (1<<FLAG_RESPONSE) | (1<<FLAG_AA);
+        // Each record is encoded once, as it's added, against a shared compression map. Every suffix
+        // written in full is added to the map, so the encoded size doesn't depend on the order of
+        // the records and the running total is the size of the packet they end up in.
+        Map<String,Integer> names = new HashMap<String,Integer>();
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        ((Buffer)buf).position(12);     // header
+        for (Packet packet : packets) {
+            int numAnswers = answers.size();
+            int numAdditionals = additionals.size();
+            for (Record r : packet.getAnswers()) {
+                answers.add(r);
+                r.write(buf, 0, names);
+            }
+            for (Record r : packet.getAdditionals()) {
+                if (!contains(additionals, r)) {
+                    additionals.add(r);
+                    r.write(buf, 0, names);
+                }
+            }
+            if (numAnswers > 0 && buf.position() > size) {
+                // Too big; send what we had, and start again with this packet
+                out.add(new Packet(0, flags, null, Collections.<Record>emptyList(), new ArrayList<Record>(answers.subList(0, numAnswers)), Collections.<Record>emptyList(), new ArrayList<Record>(additionals.subList(0, numAdditionals)), true));
+                answers = new ArrayList<Record>(packet.getAnswers());
+                additionals = new ArrayList<Record>(packet.getAdditionals());
+                names.clear();
+                ((Buffer)buf).position(12);
+                for (Record r : answers) {
+                    r.write(buf, 0, names);
+                }
+                for (Record r : additionals) {
+                    r.write(buf, 0, names);
+                }
+            }
+        }
+        if (!answers.isEmpty()) {
+            out.add(new Packet(0, flags, null, Collections.<Record>emptyList(), answers, Collections.<Record>emptyList(), additionals, true));
+        }
+        return out;
+    }
+
+    private static boolean contains(List<Record> records, Record r) {
+        for (int i=0;i<records.size();i++) {
+            Record r2 = records.get(i);
+            if (r2.getTTL() == r.getTTL() && r2.matches(r)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Write the packet
      * @param out the ByteByffer to write to
      */
     public void write(ByteBuffer out) {
+        byte[] encoded = this.encoded;
+        if (encoded != null) {
+            out.put(encoded);
+            return;
+        }
+        final int start = out.position();
+        final Map<String,Integer> names = new HashMap<String,Integer>();
         out.putShort((short)id);
         out.putShort((short)flags);
         out.putShort((short)questions.size());
@@ -275,16 +477,23 @@ public class Packet {
         out.putShort((short)authorities.size());
         out.putShort((short)additionals.size());
         for (Record r : questions) {
-            r.write(out);
+            r.write(out, start, names);
         }
         for (Record r : answers) {
-            r.write(out);
+            r.write(out, start, names);
         }
         for (Record r : authorities) {
-            r.write(out);
+            r.write(out, start, names);
         }
         for (Record r : additionals) {
-            r.write(out);
+            r.write(out, start, names);
+        }
+        if (applied != null) {
+            ByteBuffer b = out.duplicate();
+            ((Buffer)b).position(start);
+            encoded = new byte[out.position() - start];
+            b.get(encoded);
+            this.encoded = encoded;
         }
     }
 
@@ -19,12 +19,16 @@ final class Record {
     static final int TYPE_SRV   = 0x21;
     static final int TYPE_NSEC  = 0x2F; // Not used by dns-sd
     static final int TYPE_ANY   = 0xFF;
-    private static final int CLAZZ = 0x8001;
+    private static final int CLASS_IN = 0x0001;
+    private static final int CLASS_UNICAST = 0x8000;    // for a question, the QU bit (RFC 6762 section 5.4)
+    private static final int CLASS_FLUSH = 0x8000;      // for an answer, the cache-flush bit (RFC 6762 section 10.2)
 
     private final int type, clazz;
-    private final String name;
-    private final Object data;
+    private String name;
+    private Object data;
     private int ttl;
+    private volatile ByteBuffer src;            // If not null, the packet name and data are read from when first needed; cleared once read
+    private final int namepos, datapos, datalen;
 
     /**
      * @param tyoe the type
@@ -42,6 +46,8 @@ final class Record {
             throw new IllegalArgumentException("Null name");
         }
         this.data = data;
+        this.src = null;
+        this.namepos = this.datapos = this.datalen = -1;
         if (data == null) {
         } else if ((type == TYPE_A || type == TYPE_AAAA) && !(data instanceof InetAddress)) {
             throw new Error(data.toString()+" "+data.getClass().getName());
@@ -53,6 +59,57 @@ final class Record {
         if (type == TYPE_PTR && data instanceof String && ((String)data).startsWith("...")) throw new Error(data.toString());
     }
 
+    /**
+     * Create a Record which has been indexed but not yet read from a packet.
+     * @param type the type
+     * @param clazz the class
+     * @param ttl the ttl in seconds
+     * @param src the buffer containing the packet, which must not be modified
+     * @param namepos the offset of the name in src
+     * @param datapos the offset of the data in src, or -1 for questions
+     * @param datalen the length of the data
+     */
+    private Record(int type, int clazz, int ttl, ByteBuffer src, int namepos, int datapos, int datalen) {
+        this.type = type;
+        this.clazz = clazz;
+        this.ttl = ttl;
+        this.src = src;
+        this.namepos = namepos;
+        this.datapos = datapos;
+        this.datalen = datalen;
+    }
+
+    /**
+     * If this Record was indexed from a packet, read the name and data, then drop
+     * the reference to the packet so a cached record doesn't keep it in memory
+     */
+    private synchronized void read() {
+        ByteBuffer src = this.src;
+        if (src != null) {
+            ByteBuffer in = src.duplicate();
+            try {
+                ((Buffer)in).position(namepos);
+                String name = readName(in);
+                if (datapos >= 0) {
+                    ((Buffer)in).position(datapos);
+                    data = readData(in, type, datalen);
+                }
+                this.name = name;
+                this.src = null;
+            } catch (Exception e) {
+                ((Buffer)in).position(namepos);
+                throw (RuntimeException)new RuntimeException("Failed reading record " + Packet.dump(in)).initCause(e);
+            }
+        }
+    }
+
+    private Object getData() {
+        if (src != null) {
+            read();
+        }
+        return data;
+    }
+
     int getTTL() {
         return ttl;
     }
@@ -62,6 +119,9 @@ final class Record {
     }
 
     String getName() {
+        if (src != null) {
+            read();
+        }
         return name;
     }
 
@@ -69,46 +129,120 @@ final class Record {
         return type;
     }
 
+    /**
+     * For a question, return true if the QU bit is set, meaning the querier
+     * would like a unicast response
+     */
+    boolean isUnicast() {
+        return (clazz & CLASS_UNICAST) != 0;
+    }
+
+    /**
+     * For an answer, return true if the cache-flush bit is set, meaning this
+     * record replaces any others of the same name and type (RFC 6762 section 10.2)
+     */
+    boolean isCacheFlush() {
+        return (clazz & CLASS_FLUSH) != 0;
+    }
+
     InetAddress getAddress() {
+        Object data = getData();
         return data instanceof InetAddress ? (InetAddress)data : null;
     }
 
     int getSrvPriority() {
+        Object data = getData();
         return data instanceof SrvData ? ((SrvData)data).priority : 0;
     }
 
     int getSrvWeight() {
+        Object data = getData();
         return data instanceof SrvData ? ((SrvData)data).weight : 0;
     }
 
     int getSrvPort() {
+        Object data = getData();
         return data instanceof SrvData ? ((SrvData)data).port : 0;
     }
 
     String getSrvHost() {
+        Object data = getData();
         return data instanceof SrvData ? ((SrvData)data).host : null;
     }
 
     String getPtrValue() {
+        Object data = getData();
         return data instanceof String ? (String)data : null;
     }
 
     @SuppressWarnings("unchecked")
     Map<String,String> getText() {
+        Object data = getData();
         return data instanceof Map ? (Map<String,String>)data : null;
     }
 
+    /**
+     * Return a copy of this record with a different TTL
+     * @param ttl the ttl in seconds
+     */
+    Record copy(int ttl) {
+        return new Record(type, clazz, ttl, getName(), getData());
+    }
+
+    /**
+     * Return a copy of this record with a different TTL and the cache-flush bit set or cleared
+     * @param ttl the ttl in seconds
+     * @param flush whether to set the cache-flush bit
+     */
+    Record copy(int ttl, boolean flush) {
+        return new Record(type, flush ? clazz | CLASS_FLUSH : clazz & ~CLASS_FLUSH, ttl, getName(), getData());
+    }
+
+    /**
+     * Return true if the other record has the same name, type and data as this one.
+     * The TTL and class are not compared.
+     * @param r the other record
+     */
+    boolean matches(Record r) {
+        if (r.getType() != type || !r.getName().equalsIgnoreCase(getName())) {
+            return false;
+        }
+        Object d0 = getData();
+        Object d1 = r.getData();
+        if (d0 instanceof String && d1 instanceof String) {
+            return ((String)d0).equalsIgnoreCase((String)d1);
+        } else if (d0 instanceof SrvData && d1 instanceof SrvData) {
+            SrvData s0 = (SrvData)d0;
+            SrvData s1 = (SrvData)d1;
+            return s0.priority == s1.priority && s0.weight == s1.weight && s0.port == s1.port && s0.host.equalsIgnoreCase(s1.host);
+        } else if (d0 instanceof byte[] && d1 instanceof byte[]) {
+            return Arrays.equals((byte[])d0, (byte[])d1);
+        } else {
+            return d0 == null ? d1 == null : d0.equals(d1);
+        }
+    }
+
     //----------------------------------------------------
     // Static creation methods
     //----------------------------------------------------
 
     /**
-     * Create a new Question
+     * Create a new Question, asking for a multicast response
      * @param type the type
      * @param name the name
      */
     static Record newQuestion(int type, String name) {
-        return new Record(type, CLAZZ, 0, name, null);
+        return newQuestion(type, name, false);
+    }
+
+    /**
+     * Create a new Question
+     * @param type the type
+     * @param name the name
+     * @param unicast whether to set the QU bit to ask for a unicast response
+     */
+    static Record newQuestion(int type, String name, boolean unicast) {
+        return new Record(type, unicast ? CLASS_IN | CLASS_UNICAST : CLASS_IN, 0, name, null);
     }
 
     /**
@@ -120,33 +254,38 @@ final class Record {
         if (name == null) {
             throw new IllegalArgumentException("name is null");
         } else if (address instanceof Inet4Address) {
-            return new Record(TYPE_A, CLAZZ, 120, name, address);
+            return new Record(TYPE_A, CLASS_IN | CLASS_FLUSH, 120, name, address);
         } else if (address instanceof Inet6Address) {
-            return new Record(TYPE_AAAA, CLAZZ, 120, name, address);
+            return new Record(TYPE_AAAA, CLASS_IN | CLASS_FLUSH, 120, name, address);
         } else {
             throw new IllegalArgumentException("address invalid");
         }
     }
 
+    /**
+     * Create a new PTR record. As a shared record, this never has the cache-flush bit set
+     * @param name the name
+     * @param value the value
+     */
     static Record newPtr(String name, String value) {
         if (name == null || value == null) {
             throw new IllegalArgumentException("name or value is null");
         }
-        return new Record(TYPE_PTR, CLAZZ, 28800, name, value);
+        return new Record(TYPE_PTR, CLASS_IN, 28800, name, value);
     }
 
     static Record newSrv(String name, String host, int port, int weight, int priority) {
         if (name == null || host == null || port < 1 || port > 65535) {
             throw new IllegalArgumentException("name, host or port is invalid");
         }
-        return new Record(TYPE_SRV, CLAZZ, 120, name, new SrvData(priority, weight, port, host));
+        return new Record(TYPE_SRV, CLASS_IN | CLASS_FLUSH, 120, name, new SrvData(priority, weight, port, host));
     }
 
     static Record newTxt(String name, Map<String,String> map) {
         if (name == null || map == null) {
             throw new IllegalArgumentException("name or map is invalid");
         }
-        return new Record(TYPE_TXT, CLAZZ, 4500, name, map);
+        return new Record(TYPE_TXT, CLASS_IN | CLASS_FLUSH, 4500, name, map);
     }
 
     //----------------------------------------------------
@@ -162,40 +301,7 @@ final class Record {
             int clazz = in.getShort() & 0xFFFF;
             int ttl = in.getInt();
             int len = in.getShort() & 0xFFFF;
-            Object data;
-            if (type == TYPE_PTR) {
-                data = readName(in);
-            } else if (type == TYPE_SRV) {
-                int priority = in.getShort() & 0xffff;
-                int weight = in.getShort() & 0xffff;
-                int port = in.getShort() & 0xffff;
-                String host = readName(in);
-                data = new SrvData(priority, weight, port, host);
-            } else if (type == TYPE_A || type == TYPE_AAAA) {
-                byte[] buf = new byte[len];
-                in.get(buf);
-                data = InetAddress.getByAddress(buf);
-            } else if (type == TYPE_TXT) {
-                Map<String,String> map = new LinkedHashMap<String,String>();
-                int end = in.position() + len;
-                while (in.position() < end) {
-                    String value = readString(in);
-                    if (value.length() > 0) {
-                        int ix = value.indexOf("=");
-                        if (ix > 0) {
-                            map.put(value.substring(0, ix), value.substring(ix + 1));
-                        } else {
-                            map.put(value, null);    // ???
-                        }
-                    }
-                }
-                data = Collections.<String,String>unmodifiableMap(map);
-            } else {
-//                System.out.println("UNKNOWN TYPE " + type+" len="+len);
-                byte[] buf = new byte[len];
-                in.get(buf);
-                data = buf;
-            }
+            Object data = readData(in, type, len);
             Record r =  new Record(type, clazz, ttl, name, data);
             return r;
         } catch (Exception e) {
@@ -204,6 +310,94 @@ final class Record {
         }
     }
 
+    /**
+     * Index an answer without reading its name or data, which are read
+     * from the buffer when first requested. The buffer must not be modified
+     * while the Record is in use.
+     * @param in the buffer, positioned at the start of the record
+     */
+    static Record indexAnswer(ByteBuffer in) {
+        int tell = in.position();
+        try {
+            skipName(in);
+            int type = in.getShort() & 0xFFFF;
+            int clazz = in.getShort() & 0xFFFF;
+            int ttl = in.getInt();
+            int len = in.getShort() & 0xFFFF;
+            int datapos = in.position();
+            if (datapos + len > in.limit()) {
+                throw new BufferUnderflowException();
+            }
+            ((Buffer)in).position(datapos + len);
+            return new Record(type, clazz, ttl, in, tell, datapos, len);
+        } catch (Exception e) {
+            ((Buffer)in).position(tell);
+            throw (RuntimeException)new RuntimeException("Failed reading record " + Packet.dump(in)).initCause(e);
+        }
+    }
+
+    /**
+     * Index a question without reading its name, as for {@link #indexAnswer}
+     * @param in the buffer, positioned at the start of the record
+     */
+    static Record indexQuestion(ByteBuffer in) {
+        int tell = in.position();
+        try {
+            skipName(in);
+            int type = in.getShort() & 0xFFFF;
+            int clazz = in.getShort() & 0xFFFF;
+            return new Record(type, clazz, 0, in, tell, -1, 0);
+        } catch (Exception e) {
+            ((Buffer)in).position(tell);
+            throw (RuntimeException)new RuntimeException("Failed reading record " + Packet.dump(in)).initCause(e);
+        }
+    }
+
+    /**
+     * Read the data for a record
+     * @param in the buffer, positioned at the start of the data
+     * @param type the record type
+     * @param len the length of the data
+     */
+    private static Object readData(ByteBuffer in, int type, int len) throws IOException {
+        Object data;
+        int end = in.position() + len;
+        if (type == TYPE_PTR) {
+            data = readName(in);
+        } else if (type == TYPE_SRV) {
+            int priority = in.getShort() & 0xffff;
+            int weight = in.getShort() & 0xffff;
+            int port = in.getShort() & 0xffff;
+            String host = readName(in);
+            data = new SrvData(priority, weight, port, host);
+        } else if (type == TYPE_A || type == TYPE_AAAA) {
+            byte[] buf = new byte[len];
+            in.get(buf);
+            data = InetAddress.getByAddress(buf);
+        } else if (type == TYPE_TXT) {
+            Map<String,String> map = new LinkedHashMap<String,String>();
+            while (in.position() < end) {
+                String value = readString(in);
+                if (value.length() > 0) {
+                    int ix = value.indexOf("=");
+                    if (ix > 0) {
+                        map.put(value.substring(0, ix), value.substring(ix + 1));
+                    } else {
+                        map.put(value, null);    // ???
+                    }
+                }
+            }
+            data = Collections.<String,String>unmodifiableMap(map);
+        } else {
+//            System.out.println("UNKNOWN TYPE " + type+" len="+len);
+            byte[] buf = new byte[len];
+            in.get(buf);
+            data = buf;
+        }
+        ((Buffer)in).position(end);
+        return data;
+    }
+
     static Record readQuestion(ByteBuffer in) {
 //        System.out.println("RECORD: " + Packet.dump(in));
         int tell = in.position();
@@ -219,8 +413,19 @@ final class Record {
     }
 
     void write(ByteBuffer out) {
+        write(out, out.position(), null);
+    }
+
+    /**
+     * Write the record, compressing names against those already written to the packet
+     * @param out the ByteBuffer to write to
+     * @param start the position in out of the start of the packet, which compression pointers are relative to
+     * @param names a map of names already written to the packet and their offsets from start, which will be updated; or null to disable compression
+     */
+    void write(ByteBuffer out, int start, Map<String,Integer> names) {
         final int pos1 = out.position();
-        out.put(writeName(getName()));
+        final Object data = getData();
+        writeName(getName(), out, start, names);
         out.putShort((short)type);
         out.putShort((short)clazz);
         if (data != null) {
@@ -228,12 +433,12 @@ final class Record {
             int pos = out.position();
             out.putShort((short)0);
             if (type == TYPE_PTR) {
-                out.put(writeName(getPtrValue()));
+                writeName(getPtrValue(), out, start, names);
             } else if (type == TYPE_SRV) {
                 out.putShort((short)getSrvPriority());
                 out.putShort((short)getSrvWeight());
                 out.putShort((short)getSrvPort());
-                out.put(writeName(getSrvHost()));
+                writeName(getSrvHost(), out, start, names);
             } else if (type == TYPE_A) {
                 out.put(((Inet4Address)getAddress()).getAddress());
             } else if (type == TYPE_AAAA) {
@@ -277,28 +482,46 @@ final class Record {
         }
     }
 
-    private static byte[] writeName(String name) {
-        ByteBuffer buf = ByteBuffer.allocate(name.length() * 2);
+    /**
+     * Write a name as a sequence of labels. If names is not null, any suffix of the name
+     * that has already been written will be written as a pointer (RFC 1035 4.1.4), and
+     * any suffixes written in full will be added to the map.
+     * @param name the name
+     * @param out the ByteBuffer to write to
+     * @param start the position in out of the start of the packet
+     * @param names the map of suffixes to their offset from start, or null
+     */
+    private static void writeName(String name, ByteBuffer out, int start, Map<String,Integer> names) {
         int len = name.length();
-        int start = 0;
-        for (int i=0;i<=len;i++) {
-            char c = i == len ? '.' : name.charAt(i);
-            if (c == '.') {
-                byte[] b = name.substring(start, i).getBytes(StandardCharsets.UTF_8);
-                if (b.length >= 0x40) {
-                    throw new UnsupportedOperationException("Not implemented yet");
+        int labelstart = 0;
+        while (labelstart < len) {
+            if (names != null) {
+                Integer off = names.get(labelstart == 0 ? name : name.substring(labelstart));
+                if (off != null) {
+                    out.putShort((short)(0xC000 | off.intValue()));
+                    return;
                 }
-                buf.put((byte)b.length);
-                buf.put(b);
-                start = i + 1;
+                int pos = out.position() - start;
+                if (pos < 0x4000) {
+                    names.put(labelstart == 0 ? name : name.substring(labelstart), pos);
+                }
+            }
+            int i = name.indexOf('.', labelstart);
+            if (i < 0) {
+                i = len;
+            }
+            if (i == labelstart) {
+                throw new IllegalArgumentException("Invalid name " + Service.quote(name));
+            }
+            byte[] b = name.substring(labelstart, i).getBytes(StandardCharsets.UTF_8);
+            if (b.length >= 0x40) {
+                throw new UnsupportedOperationException("Not implemented yet");
             }
+            out.put((byte)b.length);
+            out.put(b);
+            labelstart = i + 1;
         }
-        buf.put((byte)0);
-        byte[] out = new byte[buf.position()];
-        System.arraycopy(buf.array(), 0, out, 0, out.length);
-        String s = readName(ByteBuffer.wrap(out, 0, out.length));
-        if (!s.equals(name)) throw new Error(Service.quote(name)+" "+Service.quote(s));
-        return out;
+        out.put((byte)0);
     }
 
     private static byte[] writeString(String s) {
@@ -318,9 +541,41 @@ final class Record {
         if (len == 0) {
             return "";
         } else {
-            String s = new String(in.array(), in.position(), len, StandardCharsets.UTF_8);
+            return readUTF8(in, len);
+        }
+    }
+
+    /**
+     * Read len bytes of UTF-8 from the buffer, which may be a heap or direct buffer
+     */
+    private static String readUTF8(ByteBuffer in, int len) {
+        if (len > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
             ((Buffer)in).position(in.position() + len);
-            return s;
+        } else {
+            byte[] b = new byte[len];
+            in.get(b);
+            s = new String(b, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    /**
+     * Move past a name without reading it
+     */
+    private static void skipName(ByteBuffer in) {
+        int len;
+        while ((len = (in.get()&0xFF)) > 0) {
+            if (len < 0x40) {
+                ((Buffer)in).position(in.position() + len);
+            } else {
+                in.get();       // A pointer always ends the name
+                break;
+            }
         }
     }
 
@@ -334,8 +589,7 @@ final class Record {
                 if (sb.length() > 0) {
                     sb.append('.');
                 }
-                sb.append(new String(in.array(), in.position(), len, StandardCharsets.UTF_8));
-                ((Buffer)in).position(in.position() + len);
+                sb.append(readUTF8(in, len));
             } else {
                 int off = ((len & 0x3F) << 8) | (in.get() & 0xFF);       // Offset from start of packet
                 if (end < 0) {
@@ -352,6 +606,7 @@ final class Record {
     }
 
     public String toString() {
+        final Object data = getData();
         StringBuilder sb = new StringBuilder();
         sb.append("{");
         sb.append("\"type\":");
@@ -0,0 +1,288 @@
+package com.bfo.zeroconf;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * <p>
+ * A lightweight resolver for one-off lookups, for short-lived programs that don't need
+ * a {@link Zeroconf} object. Each lookup sends a query from an ephemeral port and collects
+ * the replies, which responders send directly back to that port, until the timeout expires.
+ * This is the "one-shot" querying described in RFC 6762 section 5.1: the multicast group
+ * is not joined, no threads are started and nothing is cached between lookups.
+ * </p>
+ * <pre style="background: #eee; border: 1px solid #888; font-size: 0.8em">
+ * Resolver resolver = new Resolver().setTimeout(500);
+ * for (Service service : resolver.getServices("_http._tcp")) {
+ *     System.out.println(service);
+ * }
+ * </pre>
+ * <p>
+ * Services returned by a Resolver are a snapshot: they are not updated, and can't be
+ * announced or cancelled.
+ * </p>
+ */
+public class Resolver {
+
+    private final Collection<NetworkInterface> nics;
+    private int timeout = 1000;
+    private String domain = ".local";
+
+    /**
+     * Create a new Resolver which will query on all multicast-capable NetworkInterfaces
+     */
+    public Resolver() {
+        nics = new LinkedHashSet<NetworkInterface>();
+        try {
+            for (Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();e.hasMoreElements();) {
+                NetworkInterface nic = e.nextElement();
+                if (nic.isUp() && nic.supportsMulticast() && !nic.isLoopback()) {
+                    nics.add(nic);
+                }
+            }
+        } catch (SocketException e) {
+            Zeroconf.log("Can't list NetworkInterfaces", e);
+        }
+    }
+
+    /**
+     * Return a modifiable list of the NetworkInterfaces queries are sent on
+     * @return the NetworkInterfaces
+     */
+    public Collection<NetworkInterface> getNetworkInterfaces() {
+        return nics;
+    }
+
+    /**
+     * Return the time in milliseconds each lookup waits for replies, as set by {@link #setTimeout}
+     * @return the timeout
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set how long in milliseconds each lookup waits for replies. Lookups for a single
+     * service return as soon as it's found. The default is 1000.
+     * @param timeout the timeout in milliseconds, which must be at least 1
+     * @return this
+     */
+    public Resolver setTimeout(int timeout) {
+        if (timeout < 1) {
+            throw new IllegalArgumentException("Timeout must be at least 1");
+        }
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Return the domain appended to service types, as set by {@link #setDomain}
+     * @return the domain
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * Set the domain appended to service types without one. The default is ".local"
+     * @param domain the domain
+     * @return this
+     */
+    public Resolver setDomain(String domain) {
+        if (domain == null) {
+            throw new NullPointerException("Domain cannot be null");
+        }
+        this.domain = domain;
+        return this;
+    }
+
+    /**
+     * Return the service types announced on the network, as given by the responders, eg "_http._tcp.local"
+     * @return the service types
+     * @throws IOException if the query couldn't be sent
+     */
+    public Collection<String> getServiceTypes() throws IOException {
+        Collection<String> types = new LinkedHashSet<String>();
+        for (Record r : query(Collections.singletonList(Record.newQuestion(Record.TYPE_PTR, Zeroconf.DISCOVERY)), null)) {
+            if (r.getType() == Record.TYPE_PTR && r.getName().equalsIgnoreCase(Zeroconf.DISCOVERY)) {
+                types.add(r.getPtrValue());
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Return the services of the specified type announced on the network
+     * @param type the service type, eg "_http._tcp" ({@link #getDomain} will be appended if necessary)
+     * @return the services
+     * @throws IOException if the query couldn't be sent
+     */
+    public Collection<Service> getServices(String type) throws IOException {
+        type = normalizeType(type);
+        List<Record> records = query(Collections.singletonList(Record.newQuestion(Record.TYPE_PTR, type)), null);
+        Map<String,Service> services = new LinkedHashMap<String,Service>();
+        for (Record r : records) {
+            if (r.getType() == Record.TYPE_PTR && r.getName().equalsIgnoreCase(type) && r.getTTL() != 0 && !services.containsKey(r.getPtrValue())) {
+                Service service = newService(r.getPtrValue(), records);
+                if (service != null) {
+                    services.put(r.getPtrValue(), service);
+                }
+            }
+        }
+        return Collections.<Service>unmodifiableCollection(services.values());
+    }
+
+    /**
+     * Return the specified service, or null if it wasn't found
+     * @param type the service type, eg "_http._tcp" ({@link #getDomain} will be appended if necessary)
+     * @param name the service instance name
+     * @return the service, or null if it wasn't found before the timeout
+     * @throws IOException if the query couldn't be sent
+     */
+    public Service getService(String type, String name) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0;i<name.length();i++) {
+            char c = name.charAt(i);
+            if (c == '.' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        sb.append('.');
+        sb.append(normalizeType(type));
+        String fqdn = sb.toString();
+        List<Record> questions = Arrays.asList(Record.newQuestion(Record.TYPE_SRV, fqdn), Record.newQuestion(Record.TYPE_TXT, fqdn));
+        return newService(fqdn, query(questions, fqdn));
+    }
+
+    private String normalizeType(String type) {
+        int ix = type.indexOf(".");
+        if (ix > 0 && type.indexOf('.', ix + 1) < 0) {
+            type += domain;
+        }
+        return type;
+    }
+
+    /**
+     * Create a Service from the records received, or return null if there is no SRV record for it
+     */
+    private static Service newService(String fqdn, List<Record> records) {
+        if (Service.splitFQDN(fqdn) == null) {
+            return null;
+        }
+        Service service = new Service(null, fqdn);
+        String host = null;
+        for (Record r : records) {
+            if (r.getType() == Record.TYPE_SRV && r.getName().equalsIgnoreCase(fqdn) && r.getTTL() != 0) {
+                host = r.getSrvHost();
+                service.setHost(host, r.getSrvPort());
+            } else if (r.getType() == Record.TYPE_TXT && r.getName().equalsIgnoreCase(fqdn) && r.getTTL() != 0) {
+                service.setText(r.getText());
+            }
+        }
+        if (host == null) {
+            return null;
+        }
+        for (Record r : records) {
+            if ((r.getType() == Record.TYPE_A || r.getType() == Record.TYPE_AAAA) && r.getName().equalsIgnoreCase(host) && r.getTTL() != 0) {
+                service.addAddress(r.getAddress());
+            }
+        }
+        return service;
+    }
+
+    /**
+     * Return true if we've received an SRV record for the fqdn and an address for its host
+     */
+    private static boolean isResolved(String fqdn, List<Record> records) {
+        Service service = newService(fqdn, records);
+        return service != null && !service.getAddresses().isEmpty();
+    }
+
+    /**
+     * Send a query from an ephemeral port on each interface, and return all the answer and
+     * additional records from the replies received before the timeout.
+     * @param questions the questions
+     * @param fqdn if not null, return as soon as this service is resolved
+     */
+    private List<Record> query(List<Record> questions, String fqdn) throws IOException {
+        final int id = 1 + new Random().nextInt(0xFFFE);      // legacy responders echo the ID
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        new Packet(id, questions, Collections.<Record>emptyList()).write(buf);
+        ((Buffer)buf).flip();
+        final ByteBuffer query = buf.slice();
+        buf = ByteBuffer.allocate(65536);
+        List<Record> records = new ArrayList<Record>();
+        Selector selector = Selector.open();
+        List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+        try {
+            for (int i=0;i<2;i++) {
+                boolean ipv6 = i == 1;
+                DatagramChannel channel = null;
+                for (NetworkInterface nic : nics) {
+                    boolean found = false;
+                    for (Enumeration<InetAddress> e = nic.getInetAddresses();e.hasMoreElements();) {
+                        found |= (e.nextElement() instanceof Inet6Address) == ipv6;
+                    }
+                    if (!found) {
+                        continue;
+                    }
+                    try {
+                        if (channel == null) {
+                            channel = DatagramChannel.open(ipv6 ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+                            channels.add(channel);
+                            channel.configureBlocking(false);
+                            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 255);
+                            channel.bind(null);
+                            channel.register(selector, SelectionKey.OP_READ);
+                        }
+                        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nic);
+                        channel.send(query.duplicate(), ipv6 ? Zeroconf.BROADCAST6 : Zeroconf.BROADCAST4);
+                    } catch (IOException e) {
+                        // Interface doesn't support this family or has gone down; try the others
+                    } catch (UnsupportedOperationException e) {
+                        // This family isn't available at all, eg with -Djava.net.preferIPv4Stack=true
+                        break;
+                    }
+                }
+            }
+            long end = System.currentTimeMillis() + timeout;
+            long remaining;
+            while ((remaining = end - System.currentTimeMillis()) > 0) {
+                selector.select(remaining);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    DatagramChannel channel = (DatagramChannel)key.channel();
+                    InetSocketAddress address;
+                    ((Buffer)buf).clear();
+                    while ((address = (InetSocketAddress)channel.receive(buf)) != null) {
+                        ((Buffer)buf).flip();
+                        try {
+                            Packet packet = new Packet(buf, null, address, false);
+                            if (packet.isResponse() && packet.getID() == id) {
+                                records.addAll(packet.getAnswers());
+                                records.addAll(packet.getAdditionals());
+                            }
+                        } catch (RuntimeException e) {
+                            // Not a packet we can read, ignore it
+                        }
+                        ((Buffer)buf).clear();
+                    }
+                }
+                selector.selectedKeys().clear();
+                if (fqdn != null && isResolved(fqdn, records)) {
+                    break;
+                }
+            }
+        } finally {
+            for (DatagramChannel channel : channels) {
+                channel.close();
+            }
+            selector.close();
+        }
+        return records;
+    }
+
+}
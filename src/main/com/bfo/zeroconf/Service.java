@@ -2,6 +2,7 @@ package com.bfo.zeroconf;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Service represents a new Service to be announced by the Zeroconf class,
@@ -18,7 +19,6 @@ public class Service {
     private int port;
     private List<InetAddress> addresses;
     private Map<String,String> text;
-    private long lastAddressRequest;
 
     Service(Zeroconf zeroconf, String fqdn, String name, String type, String domain) {
         this.zeroconf = zeroconf;
@@ -44,7 +44,7 @@ public class Service {
 
     /**
      * Return the Zeroconf object this Service is assigned to
-     * @return the zeroconf
+     * @return the zeroconf, or null if the Service was found by a {@link Resolver}
      */
     public Zeroconf getZeroconf() {
         return zeroconf;
@@ -221,34 +221,57 @@ public class Service {
             // and if it does we want this to update automatically.
             return zeroconf.getLocalAddresses();
         } else {
-            if (addresses.isEmpty()) {
-                if (System.currentTimeMillis() - lastAddressRequest > 1000) {
-                    // We should have these, but maybe they weren't announced?
-                    // Ask once a second, no more. Requesting A also requests AAAA
-                    lastAddressRequest = System.currentTimeMillis();
-                    zeroconf.query(type, name, Record.TYPE_A);
-                }
+            if (addresses.isEmpty() && zeroconf != null) {
+                // We should have these, but maybe they weren't announced? Ask - the
+                // question is only sent once a second, no more. Requesting A also requests AAAA.
+                // Only we want to know, so ask for a unicast reply
+                zeroconf.query(type, name, Record.TYPE_A, true);
             }
             return Collections.<InetAddress>unmodifiableList(addresses);
         }
     }
 
     /**
-     * Announce this Service on the network.
+     * Announce this Service on the network, blocking until it has been probed for.
+     * This can't be called from a {@link ZeroconfListener} method, which runs on the thread that
+     * reads the probe responses: use {@link #announceAsync} there, or wrap the listener in an
+     * {@link AsyncZeroconfListener} so it runs on another thread.
      * @return true if the service was announced, false if it already exists on the network.
+     * @throws IllegalStateException if called from a ZeroconfListener, or if this Service was found by a {@link Resolver}
      */
     public boolean announce() {
+        checkZeroconf();
         return zeroconf.announce(this);
     }
 
+    /**
+     * Announce this Service on the network without blocking. The service is probed for
+     * first, which takes about 750ms; services announced at the same time are probed
+     * for together. The returned future completes on the thread reading from the
+     * network, so any actions dependent on it shouldn't block.
+     * @return a future which completes with true if the service was announced, or false if it already exists on the network.
+     * @throws IllegalStateException if this Service was found by a {@link Resolver}
+     */
+    public CompletableFuture<Boolean> announceAsync() {
+        checkZeroconf();
+        return zeroconf.announceAsync(this);
+    }
+
     /** 
      * Cancel the announcement of this Service on the Network
      * @return true if the service was announced and is now cancelled, false if it was not announced or announced by someone else.
      */
     public boolean cancel() {
+        checkZeroconf();
         return zeroconf.unannounce(this);
     }
 
+    private void checkZeroconf() {
+        if (zeroconf == null) {
+            throw new IllegalStateException("Service was found by a Resolver");
+        }
+    }
+
     public int hashCode() {
         return getFQDN().hashCode();
     }
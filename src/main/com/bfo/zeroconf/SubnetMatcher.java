@@ -0,0 +1,78 @@
+package com.bfo.zeroconf;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Matches an address against the subnets of a set of NetworkInterfaces, to find
+ * which interfaces it is local to. The subnets are stored in a binary trie, one for
+ * IPv4 and one for IPv6, so a lookup takes at most one step per bit of the address.
+ * Built once each time the network topology changes.
+ */
+final class SubnetMatcher {
+
+    private final Node v4, v6;
+
+    /**
+     * Create a new SubnetMatcher
+     * @param nics the network interfaces to match against
+     */
+    SubnetMatcher(Collection<NetworkInterface> nics) {
+        v4 = new Node();
+        v6 = new Node();
+        for (NetworkInterface nic : nics) {
+            for (InterfaceAddress ia : nic.getInterfaceAddresses()) {
+                add(ia.getAddress().getAddress(), ia.getNetworkPrefixLength(), nic);
+            }
+        }
+    }
+
+    private void add(byte[] address, int prefix, NetworkInterface nic) {
+        Node node = address.length == 4 ? v4 : v6;
+        prefix = Math.max(0, Math.min(prefix, address.length * 8));
+        for (int i=0;i<prefix;i++) {
+            int bit = (address[i>>3] >> (7-(i&7))) & 1;
+            if (node.child[bit] == null) {
+                node.child[bit] = new Node();
+            }
+            node = node.child[bit];
+        }
+        if (node.nics == null) {
+            node.nics = new ArrayList<NetworkInterface>(1);
+        }
+        if (!node.nics.contains(nic)) {
+            node.nics.add(nic);
+        }
+    }
+
+    /**
+     * Does an address apply to a specific NIC? It does if it's on one of the NIC's subnets,
+     * or if it's not on the subnet of any NIC.
+     * @param address the address
+     * @param nic the network interface
+     */
+    boolean appliesTo(InetAddress address, NetworkInterface nic) {
+        byte[] a = address.getAddress();
+        Node node = a.length == 4 ? v4 : v6;
+        boolean local = false;
+        for (int i=0;node!=null;i++) {
+            if (node.nics != null) {
+                if (node.nics.contains(nic)) {
+                    return true;
+                }
+                local = true;
+            }
+            if (i == a.length * 8) {
+                break;
+            }
+            node = node.child[(a[i>>3] >> (7-(i&7))) & 1];
+        }
+        return !local;
+    }
+
+    private static class Node {
+        final Node[] child = new Node[2];
+        List<NetworkInterface> nics;
+    }
+
+}
@@ -7,6 +7,7 @@ import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 /**
  * <p>
@@ -55,9 +56,18 @@ import java.util.concurrent.atomic.*;
  */
 public class Zeroconf {
 
-    private static final int PORT = 5353;
-    private static final String DISCOVERY = "_services._dns-sd._udp.local";
-    private static final InetSocketAddress BROADCAST4, BROADCAST6;
+    static final int PORT = 5353;
+    private static final int TOPOLOGY_DEBOUNCE = 1000;
+    private static final int PROBE_INTERVAL = 250;
+    private static final int PACKET_SIZE = 1400;        // maximum size of packets we combine records into, if the interfaces allow
+    private static final int CLOSE_TIMEOUT = 2000;      // how long close() waits for goodbyes to be sent
+    private static final int BROWSE_MAX_INTERVAL = 3600000;
+    private static final int QUERY_WINDOW = 20;         // how long questions are held to be combined with others
+    private static final Object TOPOLOGY_CHECK = new Object(), TOPOLOGY_CHANGE = new Object(), PROBE = new Object(), QUERY = new Object(), RECENT = new Object();       // keys for the expiry queue
+    static final String DISCOVERY = "_services._dns-sd._udp.local";
+    private static final int[] ANSWER_TYPES = { Record.TYPE_PTR, Record.TYPE_SRV, Record.TYPE_TXT };      // The types in the responder table
+    private static final int[] ANY_TYPES = { Record.TYPE_PTR, Record.TYPE_SRV, Record.TYPE_TXT, Record.TYPE_A, Record.TYPE_AAAA };   // The types we cache
+    static final InetSocketAddress BROADCAST4, BROADCAST6;
     static {
         try {
             BROADCAST4 = new InetSocketAddress(InetAddress.getByName("224.0.0.251"), PORT);
@@ -72,10 +82,29 @@ public class Zeroconf {
     private InetAddress address;
     private final CopyOnWriteArrayList<ZeroconfListener> listeners;
     private final Map<Service,Packet> announceServices;
+    private final Map<String,List<Responder>> responders;     // keyed on lowercase name + " " + type, the lists are never modified
+    private final Map<String,Record> typeResponders;            // DISCOVERY PTR for each announced type, keyed on type, updated with responders
     private final Map<String,Service> heardServices;    // keyed on FQDN and also "!" + hostname
+    private final Map<String,Collection<Service>> heardHosts;   // heardServices indexed by host, only accessed by ListenerThread
     private final Collection<String> heardServiceTypes, heardServiceNames;
-    private final Map<Object,ExpiryTask> expiry;
+    private final ExpiryQueue expiry;
     private final Collection<NetworkInterface> nics;
+    private final Map<NetworkInterface,PendingResponse> pendingResponses;       // only accessed by ListenerThread
+    private final Map<NetworkInterface,Map<Record,Long>> recentlyMulticast;     // only accessed by ListenerThread
+    private long recentPruneTime = Long.MAX_VALUE;                              // only accessed by ListenerThread
+    private final Map<InetSocketAddress,Packet> truncatedQueries;               // only accessed by ListenerThread
+    private double refreshJitter;                           // for the packet being processed, only accessed by ListenerThread
+    private volatile boolean directBuffers;
+    private volatile int receiveBatchSize = 64;
+    private volatile int topologyInterval = 5000;
+    private volatile int sendRate = 100, sendBurst = 20;
+    private final Set<NetworkInterface> changedNics;        // only accessed by ListenerThread
+    private final Runnable topologyCheck, probeTask, queryTask, recentPruneTask;
+    private final Map<String,Record> pendingQuestions;      // keyed on lowercase name + " " + type, synchronized on itself
+    private final Map<String,Browse> browses;                // keyed on lowercase type
+    private final Map<String,Long> askedQuestions;          // when each question was last queued, synchronized on pendingQuestions
+    private final Map<String,Probe> probes;                 // keyed on lowercase FQDN, synchronized on itself
+    private final AtomicLong receiveOverruns = new AtomicLong(), receiveErrors = new AtomicLong();
 
     /**
      * Create a new Zeroconf object
@@ -89,10 +118,41 @@ public class Zeroconf {
         }
         listeners = new CopyOnWriteArrayList<ZeroconfListener>();
         announceServices = new ConcurrentHashMap<Service,Packet>();
+        responders = new ConcurrentHashMap<String,List<Responder>>();
+        typeResponders = new ConcurrentHashMap<String,Record>();
         heardServices = new ConcurrentHashMap<String,Service>();
+        heardHosts = new HashMap<String,Collection<Service>>();
         heardServiceTypes = new CopyOnWriteArraySet<String>();
         heardServiceNames = new CopyOnWriteArraySet<String>();
-        expiry = new HashMap<Object,ExpiryTask>();
+        expiry = new ExpiryQueue();
+        pendingResponses = new HashMap<NetworkInterface,PendingResponse>();
+        recentlyMulticast = new HashMap<NetworkInterface,Map<Record,Long>>();
+        truncatedQueries = new HashMap<InetSocketAddress,Packet>();
+        changedNics = new LinkedHashSet<NetworkInterface>();
+        topologyCheck = new Runnable() {
+            public void run() {
+                checkTopology();
+            }
+        };
+        probes = new LinkedHashMap<String,Probe>();
+        probeTask = new Runnable() {
+            public void run() {
+                sendProbes();
+            }
+        };
+        pendingQuestions = new LinkedHashMap<String,Record>();
+        askedQuestions = new HashMap<String,Long>();
+        browses = new ConcurrentHashMap<String,Browse>();
+        queryTask = new Runnable() {
+            public void run() {
+                sendQuestions();
+            }
+        };
+        recentPruneTask = new Runnable() {
+            public void run() {
+                pruneRecentlyMulticast();
+            }
+        };
         thread = new ListenerThread();
 
         nics = new AbstractCollection<NetworkInterface>() {
@@ -150,17 +210,29 @@ public class Zeroconf {
 
     /** 
      * Close down this Zeroconf object and cancel any services it has advertised.
+     * The goodbye packets are sent before returning, but this will wait no more than
+     * two seconds for them to go.
      * @throws InterruptedException if we couldn't rejoin the listener thread
      */
     public void close() throws InterruptedException {
-        for (Service service : announceServices.keySet()) {
-            unannounce(service);
-        }
+        cancel(new ArrayList<Service>(announceServices.keySet()));
+        thread.flush(CLOSE_TIMEOUT);
         thread.close();
+        List<Probe> pending;
+        synchronized(probes) {
+            pending = new ArrayList<Probe>(probes.values());
+            probes.clear();
+        }
+        for (Probe probe : pending) {
+            probe.future.complete(false);
+        }
     }
 
     /**
-     * Add a {@link ZeroconfListener} to the list of listeners notified of events
+     * Add a {@link ZeroconfListener} to the list of listeners notified of events.
+     * Listeners are called on the thread that reads from the network, so a listener
+     * that is slow or blocks will delay everything else; wrap it in an
+     * {@link AsyncZeroconfListener} to have its events delivered on another thread.
      * @param listener the listener
      * @return this
      */
@@ -244,6 +316,157 @@ public class Zeroconf {
         return this;
     }
 
+    /**
+     * Return true if packets are received into a direct ByteBuffer, as set by {@link #setDirectBuffers}
+     * @return whether direct buffers are used
+     */
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    /**
+     * Set whether packets are sent and received using a direct ByteBuffer rather than a heap buffer.
+     * A direct buffer saves a copy between the network layer and the Java heap on each packet.
+     * This only affects the receive buffer itself: as that buffer is reused for the next packet,
+     * and packets may be kept by listeners, each received packet is still copied once to the heap
+     * before it's decoded. The default is false.
+     * @param direct whether to use direct buffers
+     * @return this
+     */
+    public Zeroconf setDirectBuffers(boolean direct) {
+        this.directBuffers = direct;
+        return this;
+    }
+
+    /**
+     * Return the maximum number of packets read from the network each time the
+     * listener thread wakes, as set by {@link #setReceiveBatchSize}
+     * @return the receive batch size
+     */
+    public int getReceiveBatchSize() {
+        return receiveBatchSize;
+    }
+
+    /**
+     * Set the maximum number of packets read from the network each time the listener
+     * thread wakes. Packets are read from each interface in turn until there are none
+     * left or this limit is reached, after which any queued packets are sent and expired
+     * records processed before reading resumes. A value of 1 reads a single packet
+     * per wakeup. The default is 64.
+     * @param size the batch size, which must be at least 1
+     * @return this
+     */
+    public Zeroconf setReceiveBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Size must be at least 1");
+        }
+        this.receiveBatchSize = size;
+        return this;
+    }
+
+    /**
+     * Return the number of times the listener thread stopped reading because
+     * the {@link #setReceiveBatchSize receive batch size} was reached while packets may still have been waiting.
+     * A steadily increasing value means packets are arriving faster than they can be processed,
+     * and the operating system is likely to be dropping them.
+     * @return the number of receive overruns
+     */
+    public long getReceiveOverruns() {
+        return receiveOverruns.get();
+    }
+
+    /**
+     * Return the number of packets that have been received but dropped because
+     * they couldn't be read or processed.
+     * @return the number of dropped packets
+     */
+    public long getReceiveErrors() {
+        return receiveErrors.get();
+    }
+
+    /**
+     * Return how often in milliseconds the NetworkInterfaces are checked for changes,
+     * as set by {@link #setTopologyCheckInterval}
+     * @return the topology check interval
+     */
+    public int getTopologyCheckInterval() {
+        return topologyInterval;
+    }
+
+    /**
+     * Set how often in milliseconds the NetworkInterfaces are checked for changes to their
+     * addresses or whether they're up. Checking is not free, so on hosts with many interfaces
+     * it may be worth increasing this. Changes are announced when the interfaces have been
+     * stable for a second. The default is 5000.
+     * @param interval the interval in milliseconds, which must be at least 100
+     * @return this
+     */
+    public Zeroconf setTopologyCheckInterval(int interval) {
+        if (interval < 100) {
+            throw new IllegalArgumentException("Interval must be at least 100");
+        }
+        this.topologyInterval = interval;
+        return this;
+    }
+
+    /**
+     * Return the number of packets currently waiting to be sent
+     * @return the send queue length
+     */
+    public int getSendQueueSize() {
+        return thread.getQueueSize();
+    }
+
+    /**
+     * Return the average time in milliseconds that recently sent packets have spent in the send queue,
+     * as an exponentially weighted moving average. Responses to questions are sent before anything
+     * else, so this is an upper bound on the delay added to our responses.
+     * @return the average send queue delay in milliseconds
+     */
+    public double getSendQueueDelay() {
+        return thread.getQueueDelay();
+    }
+
+    /**
+     * Return the maximum number of packets per second sent other than responses,
+     * as set by {@link #setSendRate}
+     * @return the send rate in packets per second, or 0 if unlimited
+     */
+    public int getSendRate() {
+        return sendRate;
+    }
+
+    /**
+     * Return the number of packets other than responses that can be sent at once
+     * before the {@link #setSendRate send rate} applies
+     * @return the send burst size
+     */
+    public int getSendBurst() {
+        return sendBurst;
+    }
+
+    /**
+     * Limit the rate at which queries, announcements and goodbyes are sent, so a large
+     * number of them doesn't overwhelm the network and get dropped. Responses to questions
+     * are not limited. Up to burst packets are sent immediately, then no more than
+     * rate a second. The default is 100 a second with a burst of 20.
+     * @param rate the maximum number of packets per second, or 0 for no limit
+     * @param burst the number of packets that can be sent at once, which must be at least 1
+     * @return this
+     */
+    public Zeroconf setSendRate(int rate, int burst) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Rate must not be negative");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("Burst must be at least 1");
+        }
+        this.sendRate = rate;
+        this.sendBurst = burst;
+        thread.wakeup();
+        return this;
+    }
+
     /**
      * Return a list of InetAddresses which the Zeroconf object considers to be "local". These
      * are the all the addresses of all the {@link NetworkInterface} objects added to this
@@ -292,27 +515,152 @@ public class Zeroconf {
     public Collection<String> getServiceNames() {
         return Collections.unmodifiableCollection(heardServiceNames);
     }
+
+    /**
+     * Announce a number of Services on the network. This is the same as calling
+     * {@link Service#announceAsync} on each one, but is more efficient: the services are
+     * probed for together, and the announcements are combined into as few packets as possible.
+     * @param services the Services to announce, which must have been created for this object
+     * @return a future which completes with a map of each Service to whether it was announced
+     */
+    public CompletableFuture<Map<Service,Boolean>> announce(Collection<Service> services) {
+        final Map<Service,CompletableFuture<Boolean>> futures = new LinkedHashMap<Service,CompletableFuture<Boolean>>();
+        for (Service service : services) {
+            if (service.getZeroconf() != this) {
+                throw new IllegalArgumentException("Service " + service + " belongs to another Zeroconf");
+            }
+            futures.put(service, announceAsync(service));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()])).thenApply(new Function<Void,Map<Service,Boolean>>() {
+            public Map<Service,Boolean> apply(Void v) {
+                Map<Service,Boolean> out = new LinkedHashMap<Service,Boolean>();
+                for (Map.Entry<Service,CompletableFuture<Boolean>> e : futures.entrySet()) {
+                    out.put(e.getKey(), e.getValue().join());
+                }
+                return out;
+            }
+        });
+    }
+
+    /**
+     * Cancel the announcement of a number of Services. This is the same as calling
+     * {@link Service#cancel} on each one, but the goodbye packets are combined into
+     * as few packets as possible.
+     * @param services the Services to cancel
+     * @return the number of Services that were announced and are now cancelled
+     */
+    public int cancel(Collection<Service> services) {
+        List<Packet> goodbyes = new ArrayList<Packet>();
+        for (Service service : services) {
+            Packet packet = announceServices.get(service);
+            if (packet != null && setAnnouncement(service, packet, null)) {
+                packet = new Packet(service);       // Don't modify the announcement, it may be queued
+                for (Record r : packet.getAnswers()) {
+                    r.setTTL(0);
+                }
+                goodbyes.add(packet);
+            }
+        }
+        sendPacked(goodbyes);
+        return goodbyes.size();
+    }
      
     /**
      * Send a query to the network to probe for types or services.
      * Any responses will trigger changes to the list of services, and usually arrive within a second or two.
+     * Queries made at about the same time are combined into one packet, and a question that has
+     * been asked in the last second is not asked again.
      * @param type the service type, eg "_http._tcp" ({@link #getDomain} will be appended if necessary), or null to query for known types
      * @param name the service instance name, or null to discover services of the specified type
      */
     public void query(String type, String name) {
-        query(type, name, Record.TYPE_SRV);
+        query(type, name, Record.TYPE_SRV, false);
+    }
+
+    /**
+     * Send a query to the network to probe for types or services, as for {@link #query(String,String)}.
+     * If unicast is true, the query asks for responses to be sent directly to us rather than to
+     * every host on the network, as described in RFC 6762 section 5.4. This is appropriate for
+     * one-off lookups, but responders will still multicast records they haven't sent recently.
+     * @param type the service type, eg "_http._tcp" ({@link #getDomain} will be appended if necessary), or null to query for known types
+     * @param name the service instance name, or null to discover services of the specified type
+     * @param unicast whether to ask for unicast responses
+     */
+    public void query(String type, String name, boolean unicast) {
+        query(type, name, Record.TYPE_SRV, unicast);
     }
 
-    void query(String type, String name, int recordType) {
+    /**
+     * Start browsing for a service type. The type is {@link #query queried} repeatedly with an
+     * increasing interval, as described in RFC 6762 section 5.2: the first query is sent after
+     * 20-120ms, then after 1s, 2s, 4s and so on, up to once an hour, with some random jitter.
+     * Known answers are sent with each query, so in a stable network the responses are
+     * small or absent. The interval is reset when the network topology changes.
+     * Browsing a type that is already being browsed does nothing.
+     * @param type the service type, eg "_http._tcp" ({@link #getDomain} will be appended if necessary), or null to browse for known types
+     * @return this
+     */
+    public Zeroconf browse(String type) {
+        String key = type == null ? DISCOVERY : normalizeType(type).toLowerCase(Locale.ROOT);
+        Browse browse = new Browse(key, type);
+        if (browses.putIfAbsent(key, browse) == null) {
+            scheduleBrowse(browse, 20 + (long)(Math.random() * 100));
+        }
+        return this;
+    }
+
+    /**
+     * Stop browsing for a service type that was passed to {@link #browse}
+     * @param type the service type, or null for known types
+     * @return true if the type was being browsed
+     */
+    public boolean stopBrowse(String type) {
+        String key = type == null ? DISCOVERY : normalizeType(type).toLowerCase(Locale.ROOT);
+        Browse browse = browses.remove(key);
+        if (browse != null) {
+            expiry.remove(browse);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Schedule the next query for a browse
+     */
+    private void scheduleBrowse(final Browse browse, long delay) {
+        expiry.put(browse, System.currentTimeMillis() + delay, new Runnable() {
+            public void run() {
+                if (browses.get(browse.key) != browse) {
+                    return;     // stopped
+                }
+                query(browse.type, null, false);
+                long interval = browse.interval;
+                browse.interval = Math.min(interval * 2, BROWSE_MAX_INTERVAL);
+                // Up to 10% jitter, so browsers that started together don't stay together
+                scheduleBrowse(browse, interval + (long)(Math.random() * interval / 10));
+            }
+        }, null);
+        thread.wakeup();
+    }
+
+    /**
+     * Append the domain to a service type if it doesn't already have one
+     */
+    private String normalizeType(String type) {
+        int ix = type.indexOf(".");
+        if (ix > 0 && type.indexOf('.', ix + 1) < 0) {
+            type += getDomain();
+        }
+        return type;
+    }
+
+    void query(String type, String name, int recordType, boolean unicast) {
         if (type == null) {
-            send(new Packet(Record.newQuestion(Record.TYPE_PTR, DISCOVERY)));
+            ask(new Packet(Record.newQuestion(Record.TYPE_PTR, DISCOVERY, unicast)));
         } else {
-            int ix = type.indexOf(".");
-            if (ix > 0 && type.indexOf('.', ix + 1) < 0) {
-                type += getDomain();
-            }
+            type = normalizeType(type);
             if (name == null) {
-                send(new Packet(Record.newQuestion(Record.TYPE_PTR, type)));
+                ask(new Packet(Record.newQuestion(Record.TYPE_PTR, type, unicast)));
             } else {
                 StringBuilder sb = new StringBuilder();
                 for (int i=0;i<name.length();i++) {
@@ -324,7 +672,7 @@ public class Zeroconf {
                 }
                 sb.append('.');
                 sb.append(type);
-                send(new Packet(Record.newQuestion(recordType, sb.toString())));
+                ask(new Packet(Record.newQuestion(recordType, sb.toString(), unicast)));
             }
         }
     }
@@ -336,72 +684,333 @@ public class Zeroconf {
         thread.push(packet);
     }
 
+    /**
+     * Queue the questions from a packet to be sent, merged with any others asked in the
+     * next QUERY_WINDOW ms. Questions already queued, or queued to be sent in the last second, are
+     * dropped: RFC 6762 section 5.2 says not to ask the same question more than once a second.
+     * The time is taken when the question is queued rather than when it's sent, so a question
+     * asked again exactly a second later, such as a browse, isn't lost to the QUERY_WINDOW delay.
+     */
+    private void ask(Packet packet) {
+        if (!thread.isRunning()) {
+            // Nothing to send them yet; queue them as they are
+            sendQuery(packet);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized(pendingQuestions) {
+            boolean schedule = pendingQuestions.isEmpty();
+            for (Record question : packet.getQuestions()) {
+                String key = question.getName().toLowerCase(Locale.ROOT) + " " + question.getType();
+                Long last = askedQuestions.get(key);
+                Record pending = pendingQuestions.get(key);
+                if (pending == null ? last == null || now - last >= 1000 : pending.isUnicast() && !question.isUnicast()) {
+                    // A multicast question replaces a unicast one, as the answer will reach everyone
+                    pendingQuestions.put(key, question);
+                    askedQuestions.put(key, now);
+                }
+            }
+            if (schedule && !pendingQuestions.isEmpty()) {
+                expiry.put(QUERY, now + QUERY_WINDOW, queryTask, null);
+                thread.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Send all the queued questions. Run on the ListenerThread
+     */
+    private void sendQuestions() {
+        List<Record> questions;
+        long now = System.currentTimeMillis();
+        synchronized(pendingQuestions) {
+            questions = new ArrayList<Record>(pendingQuestions.values());
+            pendingQuestions.clear();
+            if (askedQuestions.size() > 256) {
+                for (Iterator<Long> i = askedQuestions.values().iterator();i.hasNext();) {
+                    if (now - i.next() >= 1000) {
+                        i.remove();
+                    }
+                }
+            }
+        }
+        if (!questions.isEmpty()) {
+            sendQuery(new Packet(questions, Collections.<Record>emptyList()));
+        }
+    }
+
+    /**
+     * Send a question packet, adding any known answers from our cache
+     */
+    private void sendQuery(Packet packet) {
+        List<Record> answers = new ArrayList<Record>();
+        for (Record question : packet.getQuestions()) {
+            addKnownAnswers(question, answers);
+        }
+        if (!answers.isEmpty()) {
+            packet = new Packet(packet.getQuestions(), answers);
+        }
+        send(packet);
+    }
+
+    /**
+     * Announce the service, blocking until it has been probed for
+     * @throws IllegalStateException if called on the listener thread, which would never see the probe responses; use {@link #announceAsync} there
+     */
     boolean announce(Service service) {
+        if (Thread.currentThread() == thread) {
+            // We'd never see the responses to our probes
+            throw new IllegalStateException("Can't announce synchronously from a listener, use announceAsync");
+        }
+        return announceAsync(service).join();
+    }
+
+    /**
+     * Probe for the service and announce it if no-one else is using the name.
+     * Three probes are sent 250ms apart, as described in RFC 6762 section 8.1, and
+     * the probes for every service being announced at the same time are combined
+     * into one packet. The returned future completes on the listener thread.
+     */
+    CompletableFuture<Boolean> announceAsync(Service service) {
         if (announceServices.containsKey(service)) {
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
         final String fqdn = service.getFQDN();
         if (heardServices.containsKey(fqdn)) {
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
+        if (!thread.isRunning()) {
+            // No network to probe, so nothing can conflict
+            setAnnouncement(service, null, new Packet(service));
+            reannounce(service);
+            return CompletableFuture.completedFuture(true);
+        }
+        String key = fqdn.toLowerCase(Locale.ROOT);
+        synchronized(probes) {
+            Probe probe = probes.get(key);
+            if (probe == null) {
+                probe = new Probe(service);
+                probes.put(key, probe);
+                if (probes.size() == 1) {
+                    // Wait up to 250ms before the first probe, so others can join it
+                    long delay = (long)(Math.random() * PROBE_INTERVAL);
+                    expiry.put(PROBE, System.currentTimeMillis() + delay, probeTask, null);
+                    thread.wakeup();
+                }
+            } else if (probe.service != service) {
+                // Another instance with the same name is already being probed for, and only
+                // its records would be announced
+                return CompletableFuture.completedFuture(false);
+            }
+            return probe.future;
+        }
+    }
 
-        // Do a probe to see if it exists
-        // Send three broadcasts trying to match the service name, 250ms apart.
-        // If we receive no response, assume there is no service that matches
-        final Packet probe = new Packet(Record.newQuestion(Record.TYPE_ANY, fqdn));
-        final AtomicBoolean match = new AtomicBoolean(false);
-        ZeroconfListener probelistener = new ZeroconfListener() {
-            public void packetReceived(Packet packet) {
-                if (packet.isResponse()) {
-                    for (Record r : packet.getAnswers()) {
-                        if (r.getName().equalsIgnoreCase(fqdn)) {
-                            synchronized(match) {
-                                match.set(true);
-                                match.notifyAll();
-                            }
-                        }
+    /**
+     * Send the next round of probes, and announce any services that have been
+     * probed three times without an answer. Run on the ListenerThread.
+     */
+    private void sendProbes() {
+        List<Probe> done = new ArrayList<Probe>();
+        List<Record> questions = new ArrayList<Record>();
+        int size = 0;
+        synchronized(probes) {
+            for (Iterator<Probe> i = probes.values().iterator();i.hasNext();) {
+                Probe probe = i.next();
+                if (probe.count == 3) {
+                    i.remove();
+                    done.add(probe);
+                } else {
+                    probe.count++;
+                    Record question = Record.newQuestion(Record.TYPE_ANY, probe.service.getFQDN());
+                    int len = question.getName().length() + 6;
+                    if (size + len > PACKET_SIZE && !questions.isEmpty()) {
+                        send(new Packet(questions, Collections.<Record>emptyList()));
+                        questions = new ArrayList<Record>();
+                        size = 0;
                     }
+                    questions.add(question);
+                    size += len;
                 }
             }
-        };
-        addListener(probelistener);
-        for (int i=0;i<3 && !match.get();i++) {
-            send(probe);
-            synchronized(match) {
-                try {
-                    match.wait(250);
-                } catch (InterruptedException e) {}
+            if (!questions.isEmpty()) {
+                send(new Packet(questions, Collections.<Record>emptyList()));
             }
+            if (!probes.isEmpty()) {
+                expiry.put(PROBE, System.currentTimeMillis() + PROBE_INTERVAL, probeTask, null);
+            }
+        }
+        List<Packet> announcements = new ArrayList<Packet>();
+        for (Probe probe : done) {
+            Packet packet = new Packet(probe.service);
+            if (!heardServices.containsKey(probe.service.getFQDN()) && setAnnouncement(probe.service, null, packet)) {
+                announcements.add(packet);
+            }
+        }
+        sendPacked(announcements);
+        for (Probe probe : done) {
+            probe.future.complete(announceServices.containsKey(probe.service));
         }
-        removeListener(probelistener);
+    }
 
-        if (match.get()) {
-            return false;
+    /**
+     * Fail any probes for names in a response packet, as someone else is using them
+     */
+    private void processProbeConflicts(Packet packet) {
+        List<Probe> failed = null;
+        synchronized(probes) {
+            if (probes.isEmpty()) {
+                return;
+            }
+            for (Record r : packet.getAnswers()) {
+                Probe probe = probes.remove(r.getName().toLowerCase(Locale.ROOT));
+                if (probe != null) {
+                    if (failed == null) {
+                        failed = new ArrayList<Probe>();
+                    }
+                    failed.add(probe);
+                }
+            }
+        }
+        if (failed != null) {
+            for (Probe probe : failed) {
+                probe.future.complete(false);
+            }
         }
-        reannounce(service);
-        return true;
     }
 
+    /**
+     * Send the announcement packet for a service again. The packet is reused, so
+     * it will usually have been encoded already.
+     */
     private void reannounce(Service service) {
-        Packet packet = new Packet(service);
-        announceServices.put(service, packet);
-        send(packet);
+        Packet packet = announceServices.get(service);
+        if (packet != null) {
+            send(packet);
+        }
     }
 
     /**
-     * Unannounce the service. Do this by re-announcing all our records but with a TTL of 0 to
-     * ensure they expire. Then remove from the registry.
+     * Send a number of announcement or goodbye packets, combining their records
+     * into as few packets as possible. A single packet is sent unchanged.
      */
-    boolean unannounce(Service service) {
-        Packet packet = announceServices.remove(service);
-        if (packet != null) {
-            for (Record r : packet.getAnswers()) {
-                r.setTTL(0);
+    private void sendPacked(Collection<Packet> packets) {
+        if (packets.size() == 1) {
+            send(packets.iterator().next());
+        } else if (!packets.isEmpty()) {
+            for (Packet packet : Packet.pack(packets, thread.getPacketSize())) {
+                send(packet);
+            }
+        }
+    }
+
+    /**
+     * Rebuild the announcement packets for all our services, discarding any
+     * cached encodings. Called when the network topology changes.
+     */
+    private void invalidateAnnouncements() {
+        for (Map.Entry<Service,Packet> e : announceServices.entrySet()) {
+            setAnnouncement(e.getKey(), e.getValue(), new Packet(e.getKey()));
+        }
+    }
+
+    /**
+     * Set, replace or remove the announcement packet for a service, and update the
+     * responder table used to answer questions.
+     * @param service the service
+     * @param oldpacket the current announcement packet for the service, which must match for the update to apply, or null if there should be none
+     * @param newpacket the new announcement packet for the service, or null to remove it
+     * @return true if the update was applied
+     */
+    private boolean setAnnouncement(Service service, Packet oldpacket, Packet newpacket) {
+        synchronized(responders) {
+            if (announceServices.get(service) != oldpacket) {
+                return false;
+            }
+            if (oldpacket != null) {
+                for (Record answer : oldpacket.getAnswers()) {
+                    String key = answer.getName().toLowerCase(Locale.ROOT) + " " + answer.getType();
+                    List<Responder> l = responders.get(key);
+                    if (l != null) {
+                        List<Responder> l2 = new ArrayList<Responder>(l.size());
+                        for (Responder responder : l) {
+                            if (responder.answer != answer) {
+                                l2.add(responder);
+                            }
+                        }
+                        if (l2.isEmpty()) {
+                            responders.remove(key);
+                        } else {
+                            responders.put(key, l2);
+                        }
+                    }
+                }
+            }
+            if (newpacket != null) {
+                announceServices.put(service, newpacket);
+                List<Record> all = new ArrayList<Record>();
+                all.addAll(newpacket.getAnswers());
+                all.addAll(newpacket.getAdditionals());
+                for (Record answer : newpacket.getAnswers()) {
+                    List<Record> additionals = new ArrayList<Record>();
+                    if (answer.getType() == Record.TYPE_PTR) {
+                        // When including a DNS-SD Service Instance Enumeration or Selective
+                        // Instance Enumeration (subtype) PTR record in a response packet, the
+                        // server/responder SHOULD include the following additional records:
+                        // * The SRV record(s) named in the PTR rdata.
+                        // * The TXT record(s) named in the PTR rdata.
+                        // * All address records (type "A" and "AAAA") named in the SRV rdata.
+                        for (Record a : all) {
+                            if (a.getType() == Record.TYPE_SRV || a.getType() == Record.TYPE_A || a.getType() == Record.TYPE_AAAA || a.getType() == Record.TYPE_TXT) {
+                                additionals.add(a);
+                            }
+                        }
+                    } else if (answer.getType() == Record.TYPE_SRV) {
+                        // When including an SRV record in a response packet, the
+                        // server/responder SHOULD include the following additional records:
+                        // * All address records (type "A" and "AAAA") named in the SRV rdata.
+                        for (Record a : all) {
+                            if (a.getType() == Record.TYPE_A || a.getType() == Record.TYPE_AAAA || a.getType() == Record.TYPE_TXT) {
+                                additionals.add(a);
+                            }
+                        }
+                    }
+                    String key = answer.getName().toLowerCase(Locale.ROOT) + " " + answer.getType();
+                    List<Responder> l = responders.get(key);
+                    List<Responder> l2 = new ArrayList<Responder>(l == null ? 1 : l.size() + 1);
+                    if (l != null) {
+                        l2.addAll(l);
+                    }
+                    l2.add(new Responder(service, answer, Collections.<Record>unmodifiableList(additionals)));
+                    responders.put(key, l2);
+                }
+                if (!typeResponders.containsKey(service.getType())) {
+                    // One record per type, so it can be recognised when suppressing duplicates
+                    typeResponders.put(service.getType(), Record.newPtr(DISCOVERY, service.getType()));
+                }
+            } else {
+                announceServices.remove(service);
+                boolean used = false;
+                for (Service s : announceServices.keySet()) {
+                    if (s.getType().equals(service.getType())) {
+                        used = true;
+                        break;
+                    }
+                }
+                if (!used) {
+                    typeResponders.remove(service.getType());
+                }
             }
-            send(packet);
             return true;
         }
-        return false;
+    }
+
+    /**
+     * Unannounce the service. Do this by re-announcing all our records but with a TTL of 0 to
+     * ensure they expire. Then remove from the registry.
+     */
+    boolean unannounce(Service service) {
+        return cancel(Collections.singleton(service)) == 1;
     }
 
     /**
@@ -410,14 +1019,24 @@ public class Zeroconf {
      */
     private class ListenerThread extends Thread {
         private volatile boolean cancelled;
-        private Deque<Packet> sendq;
+        private final List<Deque<QueuedPacket>> sendq;      // one queue per priority
+        private int sendqSize;
+        private volatile double sendqDelay;
+        private double tokens;          // token bucket for pacing everything other than responses
+        private long tokenTime;
         private List<NicSelectionKey> channels;
         private Map<NetworkInterface,List<InetAddress>> localAddresses;
+        private SubnetMatcher subnets;
         private Selector selector;
 
         ListenerThread() {
             setDaemon(true);
-            sendq = new ArrayDeque<Packet>();
+            sendq = new ArrayList<Deque<QueuedPacket>>();
+            for (int i=0;i<=PRIORITY_QUERY;i++) {
+                sendq.add(new ArrayDeque<QueuedPacket>());
+            }
+            tokens = sendBurst;
+            tokenTime = System.nanoTime();
             channels = new ArrayList<NicSelectionKey>();
             localAddresses = new HashMap<NetworkInterface,List<InetAddress>>();
         }
@@ -442,11 +1061,28 @@ public class Zeroconf {
             }
         }
 
+        /**
+         * Return true if the thread has started and not been closed
+         */
+        boolean isRunning() {
+            return isAlive() && !cancelled;
+        }
+
+        /**
+         * Wake the thread, so it notices a change to the expiry queue
+         */
+        synchronized void wakeup() {
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+
         /**
          * Add a packet to the send queue
          */
         synchronized void push(Packet packet) {
-            sendq.addLast(packet);
+            sendq.get(priority(packet)).addLast(new QueuedPacket(packet, System.nanoTime()));
+            sendqSize++;
             if (selector != null) {
                 // Only send if we have a Nic
                 selector.wakeup();
@@ -454,10 +1090,83 @@ public class Zeroconf {
         }
 
         /**
-         * Pop a packet from the send queue or return null if none available
+         * Pop the highest priority packet from the send queue or return null if none available.
+         * Responses are always available, anything else only if the send rate allows.
          */
         private synchronized Packet pop() {
-            return sendq.pollFirst();
+            for (int i=0;i<sendq.size();i++) {
+                Deque<QueuedPacket> q = sendq.get(i);
+                if (i != PRIORITY_RESPONSE && !q.isEmpty() && sendRate > 0) {
+                    if (getTokens() < 1) {
+                        return null;
+                    }
+                    tokens--;
+                }
+                QueuedPacket qp = q.pollFirst();
+                if (qp != null) {
+                    if (sendqSize == 1) {
+                        notifyAll();    // for flush()
+                    }
+                    sendqSize--;
+                    double delay = (System.nanoTime() - qp.queued) / 1000000d;
+                    sendqDelay = sendqDelay == 0 ? delay : sendqDelay * 0.9 + delay * 0.1;
+                    return qp.packet;
+                }
+            }
+            return null;
+        }
+
+        synchronized int getQueueSize() {
+            return sendqSize;
+        }
+
+        /**
+         * Return the size to combine records into packets up to: the largest that can be
+         * sent on every interface without splitting, but no more than PACKET_SIZE
+         */
+        synchronized int getPacketSize() {
+            int size = PACKET_SIZE;
+            for (NicSelectionKey nsk : channels) {
+                size = Math.min(size, nsk.size);
+            }
+            return size;
+        }
+
+        /**
+         * Refill the token bucket and return the number of tokens
+         */
+        private double getTokens() {
+            long now = System.nanoTime();
+            tokens = Math.min(sendBurst, tokens + (now - tokenTime) * sendRate / 1000000000d);
+            tokenTime = now;
+            return tokens;
+        }
+
+        /**
+         * Return how many milliseconds until the next paced packet can be sent,
+         * or Long.MAX_VALUE if there are none waiting
+         */
+        private synchronized long getPacingDelay() {
+            if (sendqSize == sendq.get(PRIORITY_RESPONSE).size() || sendRate == 0) {
+                return Long.MAX_VALUE;
+            }
+            return (long)Math.ceil((1 - getTokens()) * 1000 / sendRate);
+        }
+
+        /**
+         * Wait until the send queue is empty, the thread has stopped or the timeout has passed
+         * @param timeout the maximum time to wait in milliseconds
+         */
+        synchronized void flush(long timeout) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            long now;
+            while (sendqSize > 0 && isRunning() && (now = System.currentTimeMillis()) < end) {
+                wait(end - now);
+            }
+        }
+
+        double getQueueDelay() {
+            return sendqDelay;
         }
 
         /**
@@ -479,6 +1188,7 @@ public class Zeroconf {
                 }
             }
             if (changed) {
+                invalidateAnnouncements();
                 for (ZeroconfListener listener : listeners) {
                     try {
                         listener.topologyChange(nic);
@@ -503,6 +1213,7 @@ public class Zeroconf {
                 }
             }
             if (changed) {
+                invalidateAnnouncements();
                 for (ZeroconfListener listener : listeners) {
                     try {
                         listener.topologyChange(nic);
@@ -603,9 +1314,40 @@ public class Zeroconf {
                     }
                 }
             }
+            if (changed || remove) {
+                subnets = null;
+            }
+            return changed;
+        }
+
+        /**
+         * Check each NetworkInterface for changes
+         * @return the list of NICs that have changed, or null if none have
+         */
+        synchronized List<NetworkInterface> checkTopology() throws IOException {
+            List<NetworkInterface> changed = null;
+            for (NetworkInterface nic : localAddresses.keySet()) {
+                if (processTopologyChange(nic, false)) {
+                    if (changed == null) {
+                        changed = new ArrayList<NetworkInterface>();
+                    }
+                    changed.add(nic);
+                }
+            }
             return changed;
         }
 
+        /**
+         * Return the SubnetMatcher for the current NetworkInterfaces, which
+         * is rebuilt when they change.
+         */
+        synchronized SubnetMatcher getSubnets() {
+            if (subnets == null) {
+                subnets = new SubnetMatcher(localAddresses.keySet());
+            }
+            return subnets;
+        }
+
         synchronized Map<InetAddress,NetworkInterface> getLocalAddresses() {
             Map<InetAddress,NetworkInterface> map = new HashMap<InetAddress,NetworkInterface>();
             for (Map.Entry<NetworkInterface,List<InetAddress>> e : localAddresses.entrySet()) {
@@ -629,36 +1371,61 @@ public class Zeroconf {
                 // Not the end of the world if it happens
                 Thread.sleep(100);
             } catch (InterruptedException e) {}
+            expiry.put(TOPOLOGY_CHECK, System.currentTimeMillis() + topologyInterval, topologyCheck, null);
             while (!cancelled) {
+                if (buf.isDirect() != directBuffers) {
+                    buf = directBuffers ? ByteBuffer.allocateDirect(65536) : ByteBuffer.allocate(65536);
+                    buf.order(ByteOrder.BIG_ENDIAN);
+                }
                 ((Buffer)buf).clear();
                 try {
-                    Packet packet = pop();
-                    if (packet != null) {
-                        // Packet to send.
+                    Packet packet;
+                    SubnetMatcher subnets = null;
+                    while ((packet = pop()) != null) {
+                        // Packet to send - we send everything queued, highest priority first.
                         // * If it is a response to one we received, reply only on the NIC it was received on
                         // * If it contains addresses that are local addresses (assigned to a NIC on this machine)
                         //   then send only those addresses that apply to the NIC we are sending on.
                         NetworkInterface nic = packet.getNetworkInterface();
-                        Collection<NetworkInterface> nics;
-                        synchronized(this) {
-                            nics = new HashSet<NetworkInterface>(localAddresses.keySet());
+                        // A unicast response goes only to the querier, on a channel of the same family
+                        InetSocketAddress target = packet.isResponse() ? packet.getAddress() : null;
+                        if (subnets == null) {
+                            subnets = getSubnets();
                         }
                         for (NicSelectionKey nsk : channels) {
-                            if (nsk.nic.isUp()) {
+                            // Channels only exist while the NIC is up, so no need to check
+                            if (nsk.key.isValid()) {
                                 DatagramChannel channel = (DatagramChannel)nsk.key.channel();
-                                if (nic == null || nic.equals(nsk.nic)) {
-                                    Packet dup = packet.appliedTo(nsk.nic, nics);
+                                if ((nic == null || nic.equals(nsk.nic)) && (target == null || (target.getAddress() instanceof Inet6Address) == (nsk.broadcast == BROADCAST6))) {
+                                    Packet dup = packet.appliedTo(nsk.nic, subnets);
                                     if (dup != null) {
                                         ((Buffer)buf).clear();
                                         dup.write(buf);
-                                        ((Buffer)buf).flip();
-                                        channel.send(buf, nsk.broadcast);
-                                        // System.out.println("# Sending " + dup + " to " + nsk.broadcast + " on " + nsk.nic.getName());
-                                        for (ZeroconfListener listener : listeners) {
+                                        // If it's too big for the NIC, split it rather than let it fragment
+                                        List<Packet> parts = buf.position() > nsk.size ? dup.split(nsk.size) : Collections.<Packet>singletonList(dup);
+                                        for (Packet part : parts) {
+                                            if (part != dup) {
+                                                ((Buffer)buf).clear();
+                                                part.write(buf);
+                                            }
+                                            ((Buffer)buf).flip();
                                             try {
-                                                listener.packetSent(dup);
-                                            } catch (Exception e) {
-                                                log("Listener exception", e);
+                                                channel.send(buf, target != null ? target : nsk.broadcast);
+                                            } catch (IOException e) {
+                                                // Probably the NIC has gone down since we last checked
+                                                expiry.put(TOPOLOGY_CHECK, 0, topologyCheck, null);
+                                                break;
+                                            }
+                                            if (target == null) {
+                                                multicastSent(nsk.nic, part);
+                                            }
+                                            // System.out.println("# Sending " + part + " to " + nsk.broadcast + " on " + nsk.nic.getName());
+                                            for (ZeroconfListener listener : listeners) {
+                                                try {
+                                                    listener.packetSent(part);
+                                                } catch (Exception e) {
+                                                    log("Listener exception", e);
+                                                }
                                             }
                                         }
                                     }
@@ -668,48 +1435,48 @@ public class Zeroconf {
                     }
 
                     // We know selector exists
-                    selector.select(5000);
-                    for (Iterator<SelectionKey> i=selector.selectedKeys().iterator();i.hasNext();) {
-                        SelectionKey key = i.next();
-                        i.remove();
-                        // We know selected keys are readable
-                        DatagramChannel channel = (DatagramChannel)key.channel();
-                        InetSocketAddress address = (InetSocketAddress)channel.receive(buf);
-                        if (buf.position() != 0) {
-                            ((Buffer)buf).flip();
-                            NetworkInterface nic = (NetworkInterface)key.attachment();
-                            packet = new Packet(buf, nic);
-                            // System.out.println("# RX: on " + nic.getName() + ": " + packet);
-                            processPacket(packet);
+                    long timeout = Math.min(expiry.next() - System.currentTimeMillis(), getPacingDelay());
+                    selector.select(Math.max(1, Math.min(5000, timeout)));
+                    // Read every datagram waiting on each selected channel, taking one from each
+                    // in turn so a busy interface can't starve the others, up to receiveBatchSize
+                    // datagrams per wakeup. Anything left will select again immediately.
+                    List<SelectionKey> keys = new ArrayList<SelectionKey>(selector.selectedKeys());
+                    selector.selectedKeys().clear();
+                    int budget = receiveBatchSize;
+                    while (!keys.isEmpty()) {
+                        if (budget == 0) {
+                            receiveOverruns.incrementAndGet();
+                            break;
                         }
-                    }
-
-                    processExpiry();
-                    List<NetworkInterface> changed = null;
-                    synchronized(this) {
-                        for (NetworkInterface nic : localAddresses.keySet()) {
-                            if (processTopologyChange(nic, false)) {
-                                if (changed == null) {
-                                    changed = new ArrayList<NetworkInterface>();
-                                }
-                                changed.add(nic);
+                        for (Iterator<SelectionKey> i=keys.iterator();i.hasNext() && budget > 0;) {
+                            SelectionKey key = i.next();
+                            if (!key.isValid()) {
+                                i.remove();
+                                continue;
                             }
-                        }
-                    }
-                    if (changed != null) {      // Reannounce all services
-                        for (Service service : getAnnouncedServices()) {
-                            reannounce(service);
-                        }
-                        for (NetworkInterface nic : changed) {
-                            for (ZeroconfListener listener : listeners) {
+                            // We know selected keys are readable
+                            DatagramChannel channel = (DatagramChannel)key.channel();
+                            ((Buffer)buf).clear();
+                            InetSocketAddress address = (InetSocketAddress)channel.receive(buf);
+                            if (address == null) {
+                                i.remove();
+                            } else if (buf.position() != 0) {
+                                budget--;
+                                ((Buffer)buf).flip();
+                                NetworkInterface nic = (NetworkInterface)key.attachment();
                                 try {
-                                    listener.topologyChange(nic);
+                                    packet = new Packet(buf, nic, address, true);
+                                    // System.out.println("# RX: on " + nic.getName() + ": " + packet);
+                                    processPacket(packet);
                                 } catch (Exception e) {
-                                    log("Listener exception", e);
+                                    receiveErrors.incrementAndGet();
+                                    log("Can't process packet", e);
                                 }
                             }
                         }
                     }
+
+                    processExpiry();
                 } catch (Exception e) {
                     log("ListenerThread exception", e);
                 }
@@ -717,14 +1484,203 @@ public class Zeroconf {
         }
     }
 
+    /**
+     * Check the NetworkInterfaces for changes, which is done on the ListenerThread
+     * every {@link #setTopologyCheckInterval topology check interval}. Changes are collected
+     * until there have been none for a second, then announced.
+     */
+    private void checkTopology() {
+        long now = System.currentTimeMillis();
+        expiry.put(TOPOLOGY_CHECK, now + topologyInterval, topologyCheck, null);
+        try {
+            List<NetworkInterface> changed = thread.checkTopology();
+            if (changed != null) {
+                changedNics.addAll(changed);
+                expiry.put(TOPOLOGY_CHANGE, now + TOPOLOGY_DEBOUNCE, new Runnable() {
+                    public void run() {
+                        settleTopology(this);
+                    }
+                }, null);
+            }
+        } catch (Exception e) {
+            log("Can't check topology", e);
+        }
+    }
+
+    /**
+     * Called a second after a topology change was seen: check again, and if there have been
+     * more changes since, wait another second. Otherwise the topology has settled, so announce it.
+     * @param task the task to reschedule if it hasn't settled
+     */
+    private void settleTopology(Runnable task) {
+        List<NetworkInterface> changed = null;
+        try {
+            changed = thread.checkTopology();
+        } catch (Exception e) {
+            log("Can't check topology", e);
+        }
+        if (changed != null) {
+            changedNics.addAll(changed);
+            expiry.put(TOPOLOGY_CHANGE, System.currentTimeMillis() + TOPOLOGY_DEBOUNCE, task, null);
+        } else {
+            topologyChanged();
+        }
+    }
+
+    /**
+     * Called when the topology has changed and settled: reannounce all services
+     * and notify the listeners.
+     */
+    private void topologyChanged() {
+        List<NetworkInterface> changed = new ArrayList<NetworkInterface>(changedNics);
+        changedNics.clear();
+        invalidateAnnouncements();
+        sendPacked(new ArrayList<Packet>(announceServices.values()));
+        for (Browse browse : browses.values()) {
+            // Start again from the shortest interval, as there may be new services to find
+            browse.interval = 1000;
+            scheduleBrowse(browse, 20 + (long)(Math.random() * 100));
+        }
+        for (NetworkInterface nic : changed) {
+            for (ZeroconfListener listener : listeners) {
+                try {
+                    listener.topologyChange(nic);
+                } catch (Exception e) {
+                    log("Listener exception", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * An entry in the responder table: a record we announce and the additional
+     * records to send with it when it's the answer to a question.
+     */
+    private static class Responder {
+        final Service service;
+        final Record answer;
+        final List<Record> additionals;
+        Responder(Service service, Record answer, List<Record> additionals) {
+            this.service = service;
+            this.answer = answer;
+            this.additionals = additionals;
+        }
+    }
+
+    /**
+     * A response being held before sending, so it can be merged with others
+     */
+    private static class PendingResponse {
+        final Packet question;
+        final Collection<Record> answers, additionals;
+        PendingResponse(Packet question, Collection<Record> answers, Collection<Record> additionals) {
+            this.question = question;
+            this.answers = answers;
+            this.additionals = additionals;
+        }
+    }
+
+    /**
+     * A service type being browsed. Used as the key for its task in the expiry queue
+     */
+    private static class Browse {
+        final String key, type;
+        volatile long interval;
+        Browse(String key, String type) {
+            this.key = key;
+            this.type = type;
+            this.interval = 1000;
+        }
+    }
+
+    /**
+     * A pending refresh query for a cached record. Used as the key for its task in the
+     * expiry queue, and equal to any other Refresh for the same record key, so hearing
+     * the record again replaces the refresh
+     */
+    private static class Refresh {
+        final Object key;
+        final Record record;
+        final String type;
+        final long received;
+        final double jitter;
+        int count;
+        Refresh(Object key, Record record, String type, long received, double jitter) {
+            this.key = key;
+            this.record = record;
+            this.type = type;
+            this.received = received;
+            this.jitter = jitter;
+        }
+        @Override public int hashCode() {
+            return key.hashCode();
+        }
+        @Override public boolean equals(Object o) {
+            return o instanceof Refresh && ((Refresh)o).key.equals(key);
+        }
+    }
+
+    /**
+     * A service being probed for before it's announced
+     */
+    private static class Probe {
+        final Service service;
+        final CompletableFuture<Boolean> future;
+        int count;
+        Probe(Service service) {
+            this.service = service;
+            this.future = new CompletableFuture<Boolean>();
+        }
+    }
+
+    private static final int PRIORITY_RESPONSE = 0, PRIORITY_GOODBYE = 1, PRIORITY_ANNOUNCE = 2, PRIORITY_QUERY = 3;
+
+    /**
+     * Return the priority of a packet in the send queue: responses to questions go first, then
+     * goodbyes, then announcements, then queries.
+     */
+    private static int priority(Packet packet) {
+        if (!packet.isResponse()) {
+            return PRIORITY_QUERY;
+        } else if (packet.getNetworkInterface() != null) {
+            return PRIORITY_RESPONSE;
+        }
+        for (Record r : packet.getAnswers()) {
+            if (r.getTTL() != 0) {
+                return PRIORITY_ANNOUNCE;
+            }
+        }
+        return PRIORITY_GOODBYE;
+    }
+
+    private static class QueuedPacket {
+        final Packet packet;
+        final long queued;
+        QueuedPacket(Packet packet, long queued) {
+            this.packet = packet;
+            this.queued = queued;
+        }
+    }
+
     private static class NicSelectionKey {
         final NetworkInterface nic;
         final InetSocketAddress broadcast;
         final SelectionKey key;
+        final int size;
         NicSelectionKey(NetworkInterface nic, InetSocketAddress broadcast, SelectionKey key) {
             this.nic = nic;
             this.broadcast = broadcast;
             this.key = key;
+            // The largest packet we can send without fragmenting: RFC 6762 section 17 says
+            // never more than 9000 bytes including the IP and UDP headers
+            int mtu = 0;
+            try {
+                mtu = nic.getMTU();
+            } catch (IOException e) { }
+            if (mtu <= 0) {
+                mtu = 1500;
+            }
+            this.size = Math.min(mtu, 9000) - (broadcast == BROADCAST6 ? 48 : 28);
         }
     }
 
@@ -736,10 +1692,24 @@ public class Zeroconf {
                 log("Listener exception", e);
             }
         }
-        processQuestions(packet);
+        if (packet.isResponse()) {
+            processQuestions(packet);
+            suppressDuplicateAnswers(packet);
+            processProbeConflicts(packet);
+        } else {
+            Packet query = reassemble(packet);
+            if (query != null) {
+                processQuery(query);
+            }
+        }
+        if (packet.isResponse()) {
+            flushCache(packet);
+            refreshJitter = Math.random();
+        }
         Collection<Service> mod = null, add = null;
         // answers-ptr, additionals-ptr, answers-srv, additionals-srv, additionals-other
-        for (int pass=0;pass<5;pass++) {
+        // The answers in a query are known answers, which are not to be cached
+        for (int pass=0;pass<5 && packet.isResponse();pass++) {
             for (Record r : pass == 0 || pass == 2 ? packet.getAnswers() : packet.getAdditionals()) {
                 boolean ok = false;
                 switch (pass) {
@@ -764,6 +1734,7 @@ public class Zeroconf {
                                 mod.add(service);
                             }
                         } else {
+                            reindexHost(service, null, service.getHost());
                             if (add == null) {
                                 add = new ArrayList<Service>();
                             }
@@ -802,68 +1773,327 @@ public class Zeroconf {
         }
     }
 
+    /**
+     * Handle queries split across several packets, as described in RFC 6762 section 7.2.
+     * A query with the TC bit set is held until the packets carrying the rest of its known
+     * answers have arrived from the same address, or 400-500ms have passed since the last one.
+     * @param packet the query packet
+     * @return the query to answer now, or null if we're waiting for more known answers
+     */
+    private Packet reassemble(Packet packet) {
+        final InetSocketAddress address = packet.getAddress();
+        if (address == null) {
+            return packet;
+        }
+        Packet held = truncatedQueries.remove(address);
+        if (held != null) {
+            expiry.remove(address);
+            if (packet.getQuestions().isEmpty()) {
+                packet = held.append(packet);
+            } else {
+                // A new query, so we won't get any more known answers for the old one
+                processQuery(held);
+            }
+        }
+        if (packet.isTruncated()) {
+            truncatedQueries.put(address, packet);
+            // The expiry key is the address, which can't clash with any of our other keys
+            expiry.put(address, System.currentTimeMillis() + 400 + (long)(Math.random() * 100), new Runnable() {
+                public void run() {
+                    Packet held = truncatedQueries.remove(address);
+                    if (held != null) {
+                        processQuery(held);
+                    }
+                }
+            }, null);
+            return null;
+        }
+        return packet;
+    }
+
+    /**
+     * Called with a complete query from the network: answer it, and count it
+     * against any cached records it should be answered with
+     */
+    private void processQuery(Packet packet) {
+        processQuestions(packet);
+        observeQuestions(packet);
+    }
+
     private void processQuestions(Packet packet) {
         final NetworkInterface nic = packet.getNetworkInterface();
         List<Record> answers = null, additionals = null;
+        List<Record> unicastAnswers = null, unicastAdditionals = null;
         for (Record question : packet.getQuestions()) {
             if (question.getName().equals(DISCOVERY) && (question.getType() == Record.TYPE_PTR || question.getType() == Record.TYPE_ANY)) {
-                for (Service s : announceServices.keySet()) { 
+                for (Record answer : typeResponders.values()) {
+                    if (isKnownAnswer(answer, packet)) {
+                        continue;
+                    }
                     if (answers == null) {
                         answers = new ArrayList<Record>();
                     }
-                    answers.add(Record.newPtr(DISCOVERY, s.getType()));
+                    answers.add(answer);
                 }
             } else {
-                for (Packet p : announceServices.values()) { 
-                    for (Record answer : p.getAnswers()) {
-                        if (!question.getName().equals(answer.getName())) {
-                            continue;
-                        }
-                        if (question.getType() != answer.getType() && question.getType() != Record.TYPE_ANY) {
-                            continue;
-                        }
-                        if (answers == null) {
-                            answers = new ArrayList<Record>();
-                        }
-                        if (additionals == null) {
-                            additionals = new ArrayList<Record>();
-                        }
-                        answers.add(answer);
-                        List<Record> l = new ArrayList<Record>();
-                        l.addAll(p.getAnswers());
-                        l.addAll(p.getAdditionals());
-                        if (answer.getType() == Record.TYPE_PTR && question.getType() != Record.TYPE_ANY) {
-                            // When including a DNS-SD Service Instance Enumeration or Selective
-                            // Instance Enumeration (subtype) PTR record in a response packet, the
-                            // server/responder SHOULD include the following additional records:
-                            // * The SRV record(s) named in the PTR rdata.
-                            // * The TXT record(s) named in the PTR rdata.
-                            // * All address records (type "A" and "AAAA") named in the SRV rdata.
-                            for (Record a : l) {
-                                if (a.getType() == Record.TYPE_SRV || a.getType() == Record.TYPE_A || a.getType() == Record.TYPE_AAAA || a.getType() == Record.TYPE_TXT) {
-                                    additionals.add(a);
-                                }
+                String name = question.getName().toLowerCase(Locale.ROOT);
+                for (int type : question.getType() == Record.TYPE_ANY ? ANSWER_TYPES : new int[] { question.getType() }) {
+                    List<Responder> l = responders.get(name + " " + type);
+                    if (l != null) {
+                        for (Responder responder : l) {
+                            if (isKnownAnswer(responder.answer, packet)) {
+                                continue;
                             }
-                        } else if (answer.getType() == Record.TYPE_SRV && question.getType() != Record.TYPE_ANY) {
-                            // When including an SRV record in a response packet, the
-                            // server/responder SHOULD include the following additional records:
-                            // * All address records (type "A" and "AAAA") named in the SRV rdata.
-                            for (Record a : l) {
-                                if (a.getType() == Record.TYPE_A || a.getType() == Record.TYPE_AAAA || a.getType() == Record.TYPE_TXT) {
-                                    additionals.add(a);
-                                }
+                            List<Record> extra = question.getType() == Record.TYPE_ANY ? Collections.<Record>emptyList() : responder.additionals;
+                            // RFC 6762 section 5.4: reply to a QU question directly, unless we
+                            // haven't multicast the record in the last quarter of its TTL
+                            if (question.isUnicast() && packet.getAddress() != null && isRecentlyMulticast(nic, responder.answer)) {
+                                unicastAnswers = append(unicastAnswers, Collections.singletonList(responder.answer));
+                                unicastAdditionals = append(unicastAdditionals, extra);
+                            } else {
+                                answers = append(answers, Collections.singletonList(responder.answer));
+                                additionals = append(additionals, extra);
                             }
                         }
                     }
                 }
             }
         }
+        if (packet.isLegacy()) {
+            // A legacy resolver can only hear a unicast response, and mustn't cache
+            // our records for more than 10s or see the cache-flush bit (RFC 6762 section 6.7)
+            unicastAnswers = append(unicastAnswers, answers == null ? Collections.<Record>emptyList() : answers);
+            unicastAdditionals = append(unicastAdditionals, additionals == null ? Collections.<Record>emptyList() : additionals);
+            for (List<Record> l : Arrays.asList(unicastAnswers, unicastAdditionals)) {
+                for (int i=0;i<l.size();i++) {
+                    l.set(i, l.get(i).copy(Math.min(10, l.get(i).getTTL()), false));
+                }
+            }
+            if (!unicastAnswers.isEmpty()) {
+                send(new Packet(packet, unicastAnswers, unicastAdditionals, true));
+            }
+            return;
+        }
         if (answers != null) {
-            Packet response = new Packet(packet, answers, additionals);
-            send(response);
+            respond(packet, answers, additionals);
+        }
+        if (unicastAnswers != null) {
+            // Unicast responses don't need delaying, as no-one else will see them
+            send(new Packet(packet, unicastAnswers, unicastAdditionals, true));
+        }
+    }
+
+    /**
+     * Add records to a list, creating it if necessary
+     */
+    private static List<Record> append(List<Record> list, List<Record> records) {
+        if (list == null) {
+            list = new ArrayList<Record>();
+        }
+        list.addAll(records);
+        return list;
+    }
+
+    /**
+     * Return true if we've multicast a record on an interface within the last quarter of its TTL
+     */
+    private boolean isRecentlyMulticast(NetworkInterface nic, Record r) {
+        Map<Record,Long> recent = recentlyMulticast.get(nic);
+        Long when = recent == null ? null : recent.get(r);
+        return when != null && System.currentTimeMillis() - when < r.getTTL() * 250L;
+    }
+
+    /**
+     * Send a response to a question. If the response contains shared records,
+     * it is held for a random 20-120ms as described in RFC 6762 section 6, during which time
+     * it will be merged with any other responses on the same interface, and any answers sent
+     * by other responders are removed. Otherwise it's sent immediately.
+     * @param question the question packet
+     * @param answers the answers
+     * @param additionals the additional records, or null
+     */
+    private void respond(Packet question, List<Record> answers, List<Record> additionals) {
+        boolean shared = false;
+        for (Record r : answers) {
+            if (r.getType() == Record.TYPE_PTR) {
+                shared = true;
+                break;
+            }
+        }
+        final NetworkInterface nic = question.getNetworkInterface();
+        PendingResponse pending = pendingResponses.get(nic);
+        if (pending == null) {
+            if (!shared) {
+                flushResponse(new PendingResponse(question, answers, additionals));
+                return;
+            }
+            pending = new PendingResponse(question, new LinkedHashSet<Record>(), new LinkedHashSet<Record>());
+            pendingResponses.put(nic, pending);
+            int delay = 20 + ThreadLocalRandom.current().nextInt(101);
+            expiry.put(pending, System.currentTimeMillis() + delay, new Runnable() {
+                public void run() {
+                    flushResponse(pendingResponses.remove(nic));
+                }
+            }, null);
+        }
+        pending.answers.addAll(answers);
+        if (additionals != null) {
+            pending.additionals.addAll(additionals);
+        }
+    }
+
+    /**
+     * Send a response, removing any records that have been multicast on the
+     * interface in the last second (RFC 6762 section 6) and any additionals that
+     * are duplicated or already in the answers.
+     */
+    private void flushResponse(PendingResponse pending) {
+        if (pending == null) {
+            return;
+        }
+        Map<Record,Long> recent = recentlyMulticast.get(pending.question.getNetworkInterface());
+        long now = System.currentTimeMillis();
+        Set<Record> answers = new LinkedHashSet<Record>();
+        for (Record r : pending.answers) {
+            Long when = recent == null ? null : recent.get(r);
+            if (when == null || now - when >= 1000) {
+                answers.add(r);
+            }
+        }
+        if (answers.isEmpty()) {
+            return;
+        }
+        Set<Record> additionals = new LinkedHashSet<Record>();
+        if (pending.additionals != null) {
+            for (Record r : pending.additionals) {
+                if (!answers.contains(r)) {
+                    additionals.add(r);
+                }
+            }
+        }
+        send(new Packet(pending.question, new ArrayList<Record>(answers), new ArrayList<Record>(additionals)));
+    }
+
+    /**
+     * Called after a packet is multicast, to remember when its records were sent
+     */
+    private void multicastSent(NetworkInterface nic, Packet packet) {
+        if (!packet.isResponse()) {
+            return;
+        }
+        Map<Record,Long> recent = recentlyMulticast.get(nic);
+        if (recent == null) {
+            recentlyMulticast.put(nic, recent = new HashMap<Record,Long>());
+        }
+        long now = System.currentTimeMillis();
+        long prune = Long.MAX_VALUE;
+        for (Record r : packet.getAnswers()) {
+            recent.put(r, now);
+            prune = Math.min(prune, now + Math.max(1000, r.getTTL() * 250L));
+        }
+        if (prune < recentPruneTime) {
+            recentPruneTime = prune;
+            expiry.put(RECENT, prune, recentPruneTask, null);
+        }
+    }
+
+    /**
+     * Remove records from the recently multicast table once they've been there for a quarter
+     * of their TTL, as isRecentlyMulticast no longer needs them, and schedule this to run again
+     * when the next one is due. Run on the ListenerThread
+     */
+    private void pruneRecentlyMulticast() {
+        long now = System.currentTimeMillis();
+        long prune = Long.MAX_VALUE;
+        for (Iterator<Map<Record,Long>> i = recentlyMulticast.values().iterator();i.hasNext();) {
+            Map<Record,Long> recent = i.next();
+            for (Iterator<Map.Entry<Record,Long>> j = recent.entrySet().iterator();j.hasNext();) {
+                Map.Entry<Record,Long> e = j.next();
+                long when = e.getValue() + Math.max(1000, e.getKey().getTTL() * 250L);
+                if (when <= now) {
+                    j.remove();
+                } else {
+                    prune = Math.min(prune, when);
+                }
+            }
+            if (recent.isEmpty()) {
+                i.remove();
+            }
+        }
+        recentPruneTime = prune;
+        if (prune != Long.MAX_VALUE) {
+            expiry.put(RECENT, prune, recentPruneTask, null);
+        }
+    }
+
+    /**
+     * Called with a query from the network, including our own: count the questions against
+     * any cached records that should be sent in answer, so records from a host that has gone
+     * away without saying goodbye are flushed early (RFC 6762 section 10.5). Questions
+     * answered by unicast, which we won't see, are ignored.
+     */
+    private void observeQuestions(Packet packet) {
+        if (!packet.isLegacy()) {
+            long now = System.currentTimeMillis();
+            for (Record question : packet.getQuestions()) {
+                if (!question.isUnicast()) {
+                    expiry.queried(question, packet, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called with a response from the network: for each record with the cache-flush bit
+     * set, expire any different records we've cached with the same name and type in one
+     * second, so a changed address replaces the old one quickly (RFC 6762 section 10.2).
+     * Goodbyes are ignored here, they expire only their own record.
+     */
+    private void flushCache(Packet packet) {
+        long now = System.currentTimeMillis();
+        for (List<Record> l : Arrays.asList(packet.getAnswers(), packet.getAdditionals())) {
+            for (Record r : l) {
+                if (r.isCacheFlush() && r.getTTL() != 0) {
+                    expiry.flush(r, now);
+                }
+            }
         }
     }
 
+    /**
+     * Called with a response from the network: remove any records from our pending
+     * responses that have just been sent by someone else (RFC 6762 section 7.4)
+     */
+    private void suppressDuplicateAnswers(Packet packet) {
+        PendingResponse pending = pendingResponses.get(packet.getNetworkInterface());
+        if (pending != null) {
+            for (Iterator<Record> i = pending.answers.iterator();i.hasNext();) {
+                Record r = i.next();
+                for (Record other : packet.getAnswers()) {
+                    if (other.getTTL() * 2 >= r.getTTL() && other.matches(r)) {
+                        i.remove();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Return true if the questioner already knows the answer, as described in RFC 6762 section 7.1:
+     * the record is in the answer section of the question packet with at least half its TTL remaining.
+     * @param answer the record we would answer with
+     * @param question the packet containing the question
+     */
+    private static boolean isKnownAnswer(Record answer, Packet question) {
+        for (Record known : question.getAnswers()) {
+            if (known.getTTL() * 2 >= answer.getTTL() && known.matches(answer)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private List<Service> processAnswer(final Record r, final Packet packet, Service service) {
         List<Service> out = null;
         if (r.getType() == Record.TYPE_PTR && r.getName().equals(DISCOVERY)) {
@@ -876,19 +2106,20 @@ public class Zeroconf {
                         log("Listener exception", e);
                     }
                 }
-                expire(type, r.getTTL(), new Runnable() {
-                    public void run() {
-                        heardServiceTypes.remove(type);
-                        for (ZeroconfListener listener : listeners) {
-                            try {
-                                listener.typeNameExpired(type);
-                            } catch (Exception e) {
-                                log("Listener exception", e);
-                            }
+            }
+            // Refreshed each time it's heard, so a refresh query keeps the type alive
+            expire(type, r, packet.getNetworkInterface(), DISCOVERY, new Runnable() {
+                public void run() {
+                    heardServiceTypes.remove(type);
+                    for (ZeroconfListener listener : listeners) {
+                        try {
+                            listener.typeNameExpired(type);
+                        } catch (Exception e) {
+                            log("Listener exception", e);
                         }
                     }
-                });
-            }
+                }
+            });
         } else if (r.getType() == Record.TYPE_PTR) {
             final String type = r.getName();
             final String fqdn = r.getPtrValue();        // Will be a service FQDN
@@ -913,9 +2144,9 @@ public class Zeroconf {
                     }
                 });
             }
-            if (heardServiceNames.add(fqdn)) {
-                if (fqdn.endsWith(type)) {
-                    final String name = fqdn.substring(0, fqdn.length() - type.length() - 1);
+            if (fqdn.endsWith(type)) {
+                final String name = fqdn.substring(0, fqdn.length() - type.length() - 1);
+                if (heardServiceNames.add(fqdn)) {
                     for (ZeroconfListener listener : listeners) {
                         try {
                             listener.serviceNamed(type, name);
@@ -923,28 +2154,29 @@ public class Zeroconf {
                             log("Listener exception", e);
                         }
                     }
-                    expire(fqdn, r.getTTL(), new Runnable() {
-                        public void run() {
-                            heardServiceNames.remove(fqdn);
-                            for (ZeroconfListener listener : listeners) {
-                                try {
-                                    listener.serviceNameExpired(type, name);
-                                } catch (Exception e) {
-                                    log("Listener exception", e);
-                                }
+                }
+                // Refreshed each time it's heard, so the cached record is current for known-answer lists
+                expire(fqdn, r, packet.getNetworkInterface(), type, new Runnable() {
+                    public void run() {
+                        heardServiceNames.remove(fqdn);
+                        for (ZeroconfListener listener : listeners) {
+                            try {
+                                listener.serviceNameExpired(type, name);
+                            } catch (Exception e) {
+                                log("Listener exception", e);
                             }
                         }
-                    });
-                } else {
-                    for (ZeroconfListener listener : listeners) {
-                        try {
-                            listener.packetError(packet, "PTR name " + Service.quote(fqdn) + " doesn't end with type " + Service.quote(type));
-                        } catch (Exception e) {
-                            log("Listener exception", e);
-                        }
                     }
-                    service = null;
+                });
+            } else if (heardServiceNames.add(fqdn)) {
+                for (ZeroconfListener listener : listeners) {
+                    try {
+                        listener.packetError(packet, "PTR name " + Service.quote(fqdn) + " doesn't end with type " + Service.quote(type));
+                    } catch (Exception e) {
+                        log("Listener exception", e);
+                    }
                 }
+                service = null;
             }
         } else if (r.getType() == Record.TYPE_SRV) {
             final String fqdn = r.getName();
@@ -987,13 +2219,19 @@ public class Zeroconf {
                         }
                     });
                 } else {
-                    if (service.setHost(r.getSrvHost(), r.getSrvPort()) && !modified) {
+                    String oldhost = heardServices.get(fqdn) == service ? service.getHost() : null;
+                    if (service.setHost(r.getSrvHost(), r.getSrvPort())) {
+                        if (oldhost != null && !oldhost.equals(service.getHost())) {
+                            reindexHost(service, oldhost, service.getHost());
+                        }
                         modified = true;
                     }
                     int ttl = r.getTTL();
-                    expire(service, r.getTTL(), new Runnable() {
+                    expire(service, r, packet.getNetworkInterface(), fservice.getType() + fservice.getDomain(), new Runnable() {
                         public void run() {
-                            heardServices.remove(fqdn);
+                            if (heardServices.remove(fqdn, fservice)) {
+                                reindexHost(fservice, fservice.getHost(), null);
+                            }
                             for (ZeroconfListener listener : listeners) {
                                 try {
                                     listener.serviceExpired(fservice);
@@ -1022,7 +2260,7 @@ public class Zeroconf {
                 if (!service.setText(r.getText())) {
                     service = null;
                 }
-                expire("txt " + fqdn, r.getTTL(), new Runnable() {
+                expire("txt " + fqdn, r, packet.getNetworkInterface(), fservice.getType() + fservice.getDomain(), new Runnable() {
                     public void run() {
                         if (fservice.setText(null)) {
                             for (ZeroconfListener listener : listeners) {
@@ -1040,8 +2278,9 @@ public class Zeroconf {
             final String host = r.getName();
             if (service == null) {
                 out = new ArrayList<Service>();
-                for (Service s : heardServices.values()) {
-                    if (host.equals(s.getHost())) {
+                Collection<Service> services = heardHosts.get(host);
+                if (services != null) {
+                    for (Service s : services) {
                         if (processAnswer(r, packet, s) != null)  {
                             out.add(s);
                         }
@@ -1053,7 +2292,7 @@ public class Zeroconf {
                 if (!service.addAddress(address)) {
                     service = null;
                 }
-                expire(host + " " + address, r.getTTL(), new Runnable() {
+                expire(host + " " + address, r, packet.getNetworkInterface(), fservice.getType() + fservice.getDomain(), new Runnable() {
                     public void run() {
                         if (fservice.removeAddress(address)) {
                             for (ZeroconfListener listener : listeners) {
@@ -1074,33 +2313,345 @@ public class Zeroconf {
         return out;
     }
 
+    /**
+     * Update the index of heard services by host name
+     * @param service the service
+     * @param oldhost the host the service is currently indexed under, or null if it's not
+     * @param newhost the host the service should be indexed under, or null to remove it
+     */
+    private void reindexHost(Service service, String oldhost, String newhost) {
+        if (oldhost != null) {
+            Collection<Service> services = heardHosts.get(oldhost);
+            if (services != null && services.remove(service) && services.isEmpty()) {
+                heardHosts.remove(oldhost);
+            }
+        }
+        if (newhost != null) {
+            Collection<Service> services = heardHosts.get(newhost);
+            if (services == null) {
+                heardHosts.put(newhost, services = new LinkedHashSet<Service>());
+            }
+            services.add(service);
+        }
+    }
+
     private void processExpiry() {
-        // Poor mans ScheduledExecutorQueue - we won't have many of these and we're interrupting
-        // regularly anyway, so expire then when we wake.
         long now = System.currentTimeMillis();
-        for (Iterator<ExpiryTask> i = expiry.values().iterator();i.hasNext();) {
-            ExpiryTask e = i.next();
-            if (now > e.expiry) {
-                i.remove();
-                e.task.run();
-            }
+        ExpiryTask e;
+        while ((e = expiry.poll(now)) != null) {
+            e.task.run();
         }
     }
 
     private void expire(Object key, int ttl, Runnable task) {
-        expiry.put(key, new ExpiryTask(System.currentTimeMillis() + ttl * 1000, task));
+        expiry.put(key, System.currentTimeMillis() + ttl * 1000L, task, null);
+    }
+
+    /**
+     * Schedule a task to run when a heard record expires. The record is
+     * kept in the cache until then.
+     * @param nic the interface the record was heard on
+     */
+    private void expire(Object key, Record record, NetworkInterface nic, Runnable task) {
+        expiry.put(key, System.currentTimeMillis() + record.getTTL() * 1000L, task, record, nic);
+    }
+
+    /**
+     * Schedule a task to run when a heard record expires, as for {@link #expire(Object,Record,NetworkInterface,Runnable)}.
+     * If the service type the record belongs to is being {@link #browse browsed}, queries are also
+     * scheduled to refresh the record before it expires.
+     * @param nic the interface the record was heard on
+     * @param type the service type the record belongs to, eg "_http._tcp.local"
+     */
+    private void expire(Object key, Record record, NetworkInterface nic, String type, Runnable task) {
+        expire(key, record, nic, task);
+        Refresh refresh = new Refresh(key, record, type.toLowerCase(Locale.ROOT), System.currentTimeMillis(), refreshJitter);
+        if (record.getTTL() > 0 && browses.containsKey(refresh.type)) {
+            scheduleRefresh(refresh);
+        } else {
+            expiry.remove(refresh);
+        }
+    }
+
+    /**
+     * Schedule the next refresh query for a cached record. As described in RFC 6762 section 5.2,
+     * these are sent at 80%, 85%, 90% and 95% of the TTL, plus up to 2% random variation. The
+     * variation is chosen once per received packet, so the questions for records that arrived
+     * together are asked together and end up in the same query.
+     */
+    private void scheduleRefresh(final Refresh refresh) {
+        long percent = refresh.record.getTTL() * 10L;
+        long when = refresh.received + percent * (80 + refresh.count * 5) + (long)(percent * 2 * refresh.jitter);
+        expiry.put(refresh, when, new Runnable() {
+            public void run() {
+                if (browses.containsKey(refresh.type)) {
+                    ask(new Packet(Record.newQuestion(refresh.record.getType(), refresh.record.getName())));
+                    if (++refresh.count < 4) {
+                        scheduleRefresh(refresh);
+                    }
+                }
+            }
+        }, null);
+    }
+
+    /**
+     * Return the cached records that should be sent as known answers with a question,
+     * as described in RFC 6762 section 7.1: those with more than half their TTL remaining.
+     * The returned records have their TTL set to the time remaining.
+     * @param question the question
+     * @param out the list to add the records to
+     */
+    private void addKnownAnswers(Record question, List<Record> out) {
+        expiry.getKnownAnswers(question.getName(), question.getType(), System.currentTimeMillis(), out);
     }
 
     private static class ExpiryTask {
-        final long expiry;
-        final Runnable task;
-        ExpiryTask(long expiry, Runnable task) {
+        final Object key;
+        long expiry;
+        Runnable task;
+        Record record;
+        String recordKey;
+        int index;
+        NetworkInterface nic;   // the interface the record was heard on
+        int queries;            // unanswered queries seen for the record on that interface, and when the first was seen
+        long firstQuery;
+        ExpiryTask(Object key, long expiry, Runnable task) {
+            this.key = key;
             this.expiry = expiry;
             this.task = task;
         }
     }
 
-    private static void log(String message, Exception e) {
+    /**
+     * A binary min-heap of ExpiryTasks ordered by expiry time, indexed by key so a
+     * task can be replaced or removed. The expiry times are kept in a separate array
+     * so sifting doesn't need to touch the tasks themselves. Tasks for heard records
+     * are also indexed by the record name and type, which makes this our record cache.
+     */
+    private static class ExpiryQueue {
+        private final Map<Object,ExpiryTask> keys = new HashMap<Object,ExpiryTask>();
+        private final Map<String,Collection<ExpiryTask>> records = new HashMap<String,Collection<ExpiryTask>>();
+        private ExpiryTask[] tasks = new ExpiryTask[64];
+        private long[] times = new long[64];
+        private int size;
+
+        /**
+         * Schedule a task to run at the specified time, replacing any task with the same key
+         */
+        synchronized void put(Object key, long expiry, Runnable task, Record record) {
+            put(key, expiry, task, record, null);
+        }
+
+        /**
+         * Schedule a task to run at the specified time, replacing any task with the same key,
+         * and cache the record heard on the specified interface until then
+         */
+        synchronized void put(Object key, long expiry, Runnable task, Record record, NetworkInterface nic) {
+            ExpiryTask e = keys.get(key);
+            if (e == null) {
+                e = new ExpiryTask(key, expiry, task);
+                setRecord(e, record);
+                e.nic = nic;
+                keys.put(key, e);
+                if (size == tasks.length) {
+                    tasks = Arrays.copyOf(tasks, size * 2);
+                    times = Arrays.copyOf(times, size * 2);
+                }
+                set(size++, e);
+                siftUp(e.index);
+            } else {
+                long old = e.expiry;
+                e.expiry = times[e.index] = expiry;
+                e.task = task;
+                setRecord(e, record);
+                e.nic = nic;
+                if (expiry < old) {
+                    siftUp(e.index);
+                } else {
+                    siftDown(e.index);
+                }
+            }
+        }
+
+        /**
+         * Remove the task with the specified key
+         * @return true if it was scheduled
+         */
+        synchronized boolean remove(Object key) {
+            ExpiryTask e = keys.remove(key);
+            if (e != null) {
+                setRecord(e, null);
+                removeAt(e.index);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Add copies of the cached records matching the question to the list,
+         * if they have more than half their TTL remaining
+         */
+        synchronized void getKnownAnswers(String name, int type, long now, List<Record> out) {
+            name = name.toLowerCase(Locale.ROOT) + " ";
+            for (int t : type == Record.TYPE_ANY ? ANY_TYPES : new int[] { type }) {
+                Collection<ExpiryTask> l = records.get(name + t);
+                if (l != null) {
+                    for (ExpiryTask e : l) {
+                        long remaining = e.expiry - now;
+                        if (remaining * 2 > e.record.getTTL() * 1000L) {
+                            out.add(e.record.copy((int)(remaining / 1000)));
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Apply a record with the cache-flush bit set: any other cached records with
+         * the same name and type that were received more than a second ago are set
+         * to expire in one second (RFC 6762 section 10.2). Records received within the
+         * last second are kept, as they're likely part of the same set.
+         * @return true if any records were flushed
+         */
+        synchronized boolean flush(Record record, long now) {
+            boolean flushed = false;
+            Collection<ExpiryTask> l = records.get(record.getName().toLowerCase(Locale.ROOT) + " " + record.getType());
+            if (l != null) {
+                for (ExpiryTask e : l) {
+                    long received = e.expiry - e.record.getTTL() * 1000L;
+                    if (e.expiry > now + 1000 && received < now - 1000 && !e.record.matches(record)) {
+                        e.expiry = times[e.index] = now + 1000;
+                        siftUp(e.index);
+                        flushed = true;
+                    }
+                }
+            }
+            return flushed;
+        }
+
+        /**
+         * Called with a question seen in a query on the network, from us or anyone else. The
+         * query is counted against each cached record heard on the same interface that should be
+         * sent in answer to it; on other interfaces, the responder may not be reachable at all. Once
+         * there have been two or more, the record is set to expire ten seconds after the first,
+         * but no sooner than a second from now so the latest query can still be answered
+         * (RFC 6762 section 10.5). Hearing the record again resets the count and the expiry.
+         * @return true if any records were flushed
+         */
+        synchronized boolean queried(Record question, Packet packet, long now) {
+            boolean flushed = false;
+            String name = question.getName().toLowerCase(Locale.ROOT) + " ";
+            for (int t : question.getType() == Record.TYPE_ANY ? ANY_TYPES : new int[] { question.getType() }) {
+                Collection<ExpiryTask> l = records.get(name + t);
+                if (l != null) {
+                    for (ExpiryTask e : l) {
+                        if (!Objects.equals(e.nic, packet.getNetworkInterface()) || isKnownAnswer(e.record, packet)) {
+                            // No answer is expected, or none we would hear
+                        } else if (e.queries++ == 0) {
+                            e.firstQuery = now;
+                        } else {
+                            long when = Math.max(e.firstQuery + 10000, now + 1000);
+                            if (when < e.expiry) {
+                                e.expiry = times[e.index] = when;
+                                siftUp(e.index);
+                                flushed = true;
+                            }
+                        }
+                    }
+                }
+            }
+            return flushed;
+        }
+
+        private void setRecord(ExpiryTask e, Record record) {
+            String key = record == null ? null : record.getName().toLowerCase(Locale.ROOT) + " " + record.getType();
+            if (e.recordKey != null && !e.recordKey.equals(key)) {
+                Collection<ExpiryTask> l = records.get(e.recordKey);
+                if (l != null && l.remove(e) && l.isEmpty()) {
+                    records.remove(e.recordKey);
+                }
+            }
+            if (key != null && !key.equals(e.recordKey)) {
+                Collection<ExpiryTask> l = records.get(key);
+                if (l == null) {
+                    records.put(key, l = new LinkedHashSet<ExpiryTask>());
+                }
+                l.add(e);
+            }
+            e.record = record;
+            e.recordKey = key;
+            e.queries = 0;
+        }
+
+        /**
+         * Return the earliest expiry time, or Long.MAX_VALUE if there is nothing scheduled
+         */
+        synchronized long next() {
+            return size == 0 ? Long.MAX_VALUE : times[0];
+        }
+
+        /**
+         * Remove and return the earliest task if it expires before or at the specified time
+         */
+        synchronized ExpiryTask poll(long now) {
+            if (size == 0 || times[0] > now) {
+                return null;
+            }
+            ExpiryTask e = tasks[0];
+            keys.remove(e.key);
+            setRecord(e, null);
+            removeAt(0);
+            return e;
+        }
+
+        private void removeAt(int i) {
+            ExpiryTask last = tasks[--size];
+            tasks[size] = null;
+            if (i < size) {
+                set(i, last);
+                siftDown(i);
+                siftUp(last.index);
+            }
+        }
+
+        private void set(int i, ExpiryTask e) {
+            tasks[i] = e;
+            times[i] = e.expiry;
+            e.index = i;
+        }
+
+        private void siftUp(int i) {
+            ExpiryTask e = tasks[i];
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (times[parent] <= e.expiry) {
+                    break;
+                }
+                set(i, tasks[parent]);
+                i = parent;
+            }
+            set(i, e);
+        }
+
+        private void siftDown(int i) {
+            ExpiryTask e = tasks[i];
+            int half = size >> 1;
+            while (i < half) {
+                int child = (i << 1) + 1;
+                if (child + 1 < size && times[child + 1] < times[child]) {
+                    child++;
+                }
+                if (e.expiry <= times[child]) {
+                    break;
+                }
+                set(i, tasks[child]);
+                i = child;
+            }
+            set(i, e);
+        }
+    }
+
+    static void log(String message, Exception e) {
         try {
             System.getLogger(Zeroconf.class.getName()).log(System.Logger.Level.ERROR, message, e);
         } catch (Throwable ex) {